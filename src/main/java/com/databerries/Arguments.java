@@ -0,0 +1,89 @@
+package com.databerries;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line arguments: positional values followed or interleaved with "--name" and
+ * "--name=value" options.
+ */
+final class Arguments {
+    private final List<String> positionals = new ArrayList<>();
+    private final Map<String, String> options = new HashMap<>();
+
+    private Arguments() { }
+
+    static Arguments parse(String[] args) {
+        Arguments arguments = new Arguments();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int equal = arg.indexOf('=');
+                if (equal < 0)
+                    arguments.options.put(arg.substring(2), "");
+                else
+                    arguments.options.put(arg.substring(2, equal), arg.substring(equal + 1));
+            } else {
+                arguments.positionals.add(arg);
+            }
+        }
+        return arguments;
+    }
+
+    /**
+     * @return the options, in "--name=value" form, except the excluded ones.
+     */
+    List<String> options(String... excluded) {
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            if (!Arrays.asList(excluded).contains(option.getKey()))
+                result.add(format(option.getKey(), option.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * @return the given options that are present, in "--name=value" form.
+     */
+    List<String> selectedOptions(String... names) {
+        List<String> result = new ArrayList<>();
+        for (String name : names) {
+            if (options.containsKey(name))
+                result.add(format(name, options.get(name)));
+        }
+        return result;
+    }
+
+    private static String format(String name, String value) {
+        return value.isEmpty() ? "--" + name : "--" + name + "=" + value;
+    }
+
+    int positionalCount() {
+        return positionals.size();
+    }
+
+    String positional(int index) {
+        return positionals.get(index);
+    }
+
+    boolean has(String name) {
+        return options.containsKey(name);
+    }
+
+    String get(String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
+    int getInt(String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null || value.isEmpty() ? defaultValue : Integer.parseInt(value);
+    }
+
+    double getDouble(String name, double defaultValue) {
+        String value = options.get(name);
+        return value == null || value.isEmpty() ? defaultValue : Double.parseDouble(value);
+    }
+}
@@ -0,0 +1,101 @@
+package com.databerries;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Resolves many query files against a single reference index.
+ *
+ * Several query files are in progress at the same time, each one read by its own file task and
+ * written through its own {@link OrderedWriter}. The chunks of every file are resolved by the
+ * shared worker executor, against the same index: the index is not modified once built, so the
+ * searches need no synchronisation.
+ *
+ * The output of a query file has the same path relative to the output directory as the query
+ * file relative to the query directory, and is compressed if the query file is.
+ */
+class BatchResolver {
+    private static final Logger LOG = LoggerFactory.getLogger(BatchResolver.class);
+
+    private final Resolver resolver;
+    private final Path queryDirectory;
+    private final Path outputDirectory;
+    private final ExecutorService executorService;
+    private final int numberOfSegment;
+
+    /**
+     * @param resolver
+     *            resolver over the reference index.
+     * @param queryDirectory
+     *            directory the query files are relative to.
+     * @param outputDirectory
+     *            directory receiving the outputs.
+     * @param executorService
+     *            workers reading, parsing and resolving the chunks of every file.
+     * @param numberOfSegment
+     *            minimum number of segments of a query file.
+     */
+    BatchResolver(Resolver resolver, Path queryDirectory, Path outputDirectory, ExecutorService executorService, int numberOfSegment) {
+        this.resolver = resolver;
+        this.queryDirectory = queryDirectory.toAbsolutePath().normalize();
+        this.outputDirectory = outputDirectory.toAbsolutePath().normalize();
+        this.executorService = executorService;
+        this.numberOfSegment = numberOfSegment;
+    }
+
+    /**
+     * Resolves the query files, stops at the first failure.
+     *
+     * @param numberOfParallelFile
+     *            maximum number of files in progress at the same time.
+     * @return number of rows written.
+     */
+    long run(List<Path> queryFiles, int numberOfParallelFile) throws IOException, InterruptedException, ExecutionException {
+        // File tasks block on the writers, they must not take the threads of the workers
+        ExecutorService files = Executors.newFixedThreadPool(numberOfParallelFile);
+        try {
+            List<Future<Long>> futures = new ArrayList<>(queryFiles.size());
+            for (Path queryFile : queryFiles) {
+                futures.add(files.submit(() -> resolveFile(queryFile)));
+            }
+            long rows = 0;
+            for (Future<Long> future : futures) {
+                rows += future.get();
+            }
+            return rows;
+        } finally {
+            files.shutdownNow();
+        }
+    }
+
+    private long resolveFile(Path queryFile) throws IOException, InterruptedException, ExecutionException {
+        long start = System.currentTimeMillis();
+        Path outputPath = outputPath(queryFile);
+        if (outputPath.equals(queryFile.toAbsolutePath().normalize()))
+            throw new IOException("Output of " + queryFile + " would overwrite it, choose another output directory");
+        Files.createDirectories(outputPath.getParent());
+
+        Dataset dataset = Dataset.load(queryFile.toString(), numberOfSegment, executorService);
+        OrderedWriter.Target target = partition -> new BufferedOutputStream(Files.newOutputStream(outputPath), 1024 * 1024);
+        try (OrderedWriter writer = new OrderedWriter(target, IOUtils.isGzip(queryFile.toString()), numberOfSegment + 1)) {
+            FindNearestTmz.submitChunks(dataset, resolver, writer, executorService, false, 0);
+        }
+        LOG.info("Resolved {} : {} rows in {} ms, output file : {}.", queryFile, dataset.size(), System.currentTimeMillis() - start, outputPath);
+        return dataset.size();
+    }
+
+    private Path outputPath(Path queryFile) {
+        return outputDirectory.resolve(queryDirectory.relativize(queryFile.toAbsolutePath().normalize()));
+    }
+}
@@ -0,0 +1,276 @@
+package com.databerries;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Blocked gzip (BGZF) support. A BGZF file is a multi-member gzip where each member stores its
+ * compressed size in a "BC" extra subfield, so members can be located without inflating them
+ * and inflated in parallel.
+ *
+ * @see <a href="https://samtools.github.io/hts-specs/SAMv1.pdf">BGZF (SAM specification, section 4.1)</a>
+ */
+final class Bgzf {
+    static final int HEADER_SIZE = 18;
+    static final int FOOTER_SIZE = 8;
+    /**
+     * Maximum size of the uncompressed data of a block.
+     */
+    static final int MAX_BLOCK_DATA_SIZE = 0xff00;
+    static final int MAX_BLOCK_SIZE = 0x10000;
+
+    private static final int GZIP_ID1 = 31;
+    private static final int GZIP_ID2 = 139;
+    private static final int GZIP_CM_DEFLATE = 8;
+    private static final int GZIP_FLG_EXTRA = 4;
+
+    private Bgzf() { }
+
+    /**
+     * Position of the blocks of a BGZF file.
+     */
+    static final class Index {
+        private final long[] offsets;
+        private final int[] headerSizes;
+        private final int[] blockSizes;
+        private final int[] dataSizes;
+        private final int size;
+
+        private Index(long[] offsets, int[] headerSizes, int[] blockSizes, int[] dataSizes, int size) {
+            this.offsets = offsets;
+            this.headerSizes = headerSizes;
+            this.blockSizes = blockSizes;
+            this.dataSizes = dataSizes;
+            this.size = size;
+        }
+
+        int size() {
+            return size;
+        }
+
+        long dataSize() {
+            long total = 0;
+            for (int i = 0; i < size; i++) {
+                total += dataSizes[i];
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Walks the block headers of a file.
+     *
+     * @param channel
+     *            gzip file.
+     * @return the index, or null if the file is not a BGZF file.
+     * @throws IOException
+     *             if a block is cut by the end of the file: a gzip reader would ignore it as
+     *             trailing garbage and read the file short.
+     */
+    static Index index(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        int capacity = 1024;
+        long[] offsets = new long[capacity];
+        int[] headerSizes = new int[capacity];
+        int[] blockSizes = new int[capacity];
+        int[] dataSizes = new int[capacity];
+
+        ByteBuffer header = ByteBuffer.allocate(MAX_BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer footer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        int size = 0;
+        long position = 0;
+        while (position < fileSize) {
+            header.clear().limit(12);
+            if (readFully(channel, header, position) < 12)
+                return truncated(size, position);
+            if ((header.get(0) & 0xff) != GZIP_ID1 || (header.get(1) & 0xff) != GZIP_ID2
+                    || header.get(2) != GZIP_CM_DEFLATE || (header.get(3) & GZIP_FLG_EXTRA) == 0)
+                return null;
+            int extraLength = header.getShort(10) & 0xffff;
+            header.clear().limit(extraLength);
+            if (readFully(channel, header, position + 12) < extraLength)
+                return truncated(size, position);
+            int blockSize = blockSize(header, extraLength);
+            if (blockSize < 0)
+                return null;
+            if (position + blockSize > fileSize)
+                return truncated(size, position);
+
+            footer.clear();
+            readFully(channel, footer, position + blockSize - 4);
+
+            if (size == capacity) {
+                capacity *= 2;
+                offsets = Arrays.copyOf(offsets, capacity);
+                headerSizes = Arrays.copyOf(headerSizes, capacity);
+                blockSizes = Arrays.copyOf(blockSizes, capacity);
+                dataSizes = Arrays.copyOf(dataSizes, capacity);
+            }
+            offsets[size] = position;
+            headerSizes[size] = 12 + extraLength;
+            blockSizes[size] = blockSize;
+            dataSizes[size] = footer.getInt(0);
+            size++;
+            position += blockSize;
+        }
+        return size == 0 ? null : new Index(offsets, headerSizes, blockSizes, dataSizes, size);
+    }
+
+    /**
+     * A file cut in its first block is left to the gzip reader, which fails on it.
+     */
+    private static Index truncated(int blocks, long position) throws IOException {
+        if (blocks > 0)
+            throw new IOException("Truncated BGZF block at " + position);
+        return null;
+    }
+
+    /**
+     * Finds the "BC" subfield in the extra field of a header.
+     *
+     * @return total size of the block, or -1 if there is no such subfield.
+     */
+    private static int blockSize(ByteBuffer extra, int extraLength) {
+        int i = 0;
+        while (i + 4 <= extraLength) {
+            int subfieldLength = extra.getShort(i + 2) & 0xffff;
+            if (extra.get(i) == 'B' && extra.get(i + 1) == 'C' && subfieldLength == 2 && i + 6 <= extraLength)
+                return (extra.getShort(i + 4) & 0xffff) + 1;
+            i += 4 + subfieldLength;
+        }
+        return -1;
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + total);
+            if (read < 0)
+                break;
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Inflates a BGZF file in parallel. Blocks are grouped in segments, a task inflates each
+     * segment and the segments are then moved to line boundaries.
+     *
+     * @param channel
+     *            gzip file.
+     * @param index
+     *            blocks of the file.
+     * @param numberOfSegment
+     *            minimum number of segments.
+     * @param executorService
+     *            executor running the inflate tasks.
+     * @return segments in file order, ending on line boundaries.
+     */
+    static List<byte[]> readSegments(FileChannel channel, Index index, int numberOfSegment, ExecutorService executorService) throws IOException, ExecutionException, InterruptedException {
+        long segmentSize = Math.max(1, Math.min(IOUtils.MAX_SEGMENT_SIZE, (index.dataSize() + numberOfSegment - 1) / numberOfSegment));
+
+        List<Future<byte[]>> futures = new ArrayList<>();
+        int first = 0;
+        while (first < index.size) {
+            int last = first;
+            long dataSize = index.dataSizes[first];
+            while (last + 1 < index.size && dataSize + index.dataSizes[last + 1] <= segmentSize) {
+                last++;
+                dataSize += index.dataSizes[last];
+            }
+            int from = first;
+            int to = last + 1;
+            futures.add(executorService.submit(() -> inflate(channel, index, from, to)));
+            first = to;
+        }
+
+        // Move the partial last line of each segment to the next one
+        List<byte[]> segments = new ArrayList<>(futures.size());
+        byte[] carry = new byte[0];
+        for (Future<byte[]> future : futures) {
+            byte[] data = future.get();
+            int cut = data.length;
+            while (cut > 0 && data[cut - 1] != '\n')
+                cut--;
+            if (cut == 0) {
+                carry = concat(carry, data, data.length);
+                continue;
+            }
+            segments.add(concat(carry, data, cut));
+            carry = Arrays.copyOfRange(data, cut, data.length);
+        }
+        if (carry.length > 0)
+            segments.add(carry);
+        return segments;
+    }
+
+    private static byte[] concat(byte[] head, byte[] tail, int tailLength) {
+        if (head.length == 0 && tailLength == tail.length)
+            return tail;
+        byte[] result = new byte[head.length + tailLength];
+        System.arraycopy(head, 0, result, 0, head.length);
+        System.arraycopy(tail, 0, result, head.length, tailLength);
+        return result;
+    }
+
+    /**
+     * Inflates the blocks [from, to) of a file.
+     */
+    private static byte[] inflate(FileChannel channel, Index index, int from, int to) throws IOException, DataFormatException {
+        long start = index.offsets[from];
+        long end = index.offsets[to - 1] + index.blockSizes[to - 1];
+        ByteBuffer compressed = ByteBuffer.allocate((int) (end - start)).order(ByteOrder.LITTLE_ENDIAN);
+        if (readFully(channel, compressed, start) < compressed.capacity())
+            throw new IOException("Unexpected end of file at " + end);
+
+        int dataSize = 0;
+        for (int i = from; i < to; i++) {
+            dataSize += index.dataSizes[i];
+        }
+        byte[] data = new byte[dataSize];
+
+        Inflater inflater = new Inflater(true);
+        CRC32 crc = new CRC32();
+        try {
+            int position = 0;
+            for (int i = from; i < to; i++) {
+                int blockStart = (int) (index.offsets[i] - start);
+                int dataStart = blockStart + index.headerSizes[i];
+                int dataEnd = blockStart + index.blockSizes[i] - FOOTER_SIZE;
+                inflater.reset();
+                inflater.setInput(compressed.array(), dataStart, dataEnd - dataStart);
+                int length = index.dataSizes[i];
+                int inflated = 0;
+                while (inflated < length && !inflater.finished()) {
+                    int n = inflater.inflate(data, position + inflated, length - inflated);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    inflated += n;
+                }
+                if (inflated != length)
+                    throw new IOException("Corrupted block at " + index.offsets[i]);
+
+                crc.reset();
+                crc.update(data, position, length);
+                int expectedCrc = compressed.getInt(dataEnd);
+                if ((int) crc.getValue() != expectedCrc)
+                    throw new IOException("CRC mismatch in block at " + index.offsets[i]);
+                position += length;
+            }
+        } finally {
+            inflater.end();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,134 @@
+package com.databerries;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses to BGZF, a gzip file made of independent members of at most 64KB. It can be read by
+ * any gzip reader and is inflated in parallel by {@link Bgzf}.
+ */
+class BgzfOutputStream extends FilterOutputStream {
+    private static final byte[] EOF_BLOCK = {
+            31, (byte) 139, 8, 4, 0, 0, 0, 0, 0, (byte) 255, 6, 0, 66, 67, 2, 0, 27, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    private final byte[] data = new byte[Bgzf.MAX_BLOCK_DATA_SIZE];
+    private final byte[] block = new byte[Bgzf.MAX_BLOCK_SIZE];
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private int length = 0;
+    private boolean closed = false;
+
+    BgzfOutputStream(OutputStream out) {
+        this(out, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    BgzfOutputStream(OutputStream out, int level) {
+        super(out);
+        this.deflater = new Deflater(level, true);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (length == data.length)
+            writeBlock();
+        data[length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (length == data.length)
+                writeBlock();
+            int n = Math.min(len, data.length - length);
+            System.arraycopy(b, off, data, length, n);
+            length += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Writes the pending data as a block, the stream stays readable up to this point.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (length > 0)
+            writeBlock();
+        out.flush();
+    }
+
+    /**
+     * Writes the pending data and the BGZF end of file marker.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            if (length > 0)
+                writeBlock();
+            writeEndOfFile(out);
+            out.close();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Writes the BGZF end of file marker, for streams made of blocks flushed by several
+     * BgzfOutputStream.
+     */
+    static void writeEndOfFile(OutputStream out) throws IOException {
+        out.write(EOF_BLOCK);
+    }
+
+    private void writeBlock() throws IOException {
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        int compressedLength = 0;
+        int capacity = block.length - Bgzf.HEADER_SIZE - Bgzf.FOOTER_SIZE;
+        while (!deflater.finished()) {
+            int n = deflater.deflate(block, Bgzf.HEADER_SIZE + compressedLength, capacity - compressedLength);
+            compressedLength += n;
+            if (n == 0 && compressedLength == capacity)
+                throw new IOException("Block does not fit in " + Bgzf.MAX_BLOCK_SIZE + " bytes");
+        }
+        crc.reset();
+        crc.update(data, 0, length);
+
+        int blockSize = Bgzf.HEADER_SIZE + compressedLength + Bgzf.FOOTER_SIZE;
+        block[0] = 31;
+        block[1] = (byte) 139;
+        block[2] = 8;
+        block[3] = 4;
+        block[4] = block[5] = block[6] = block[7] = 0;
+        block[8] = 0;
+        block[9] = (byte) 255;
+        writeShort(block, 10, 6);
+        block[12] = 'B';
+        block[13] = 'C';
+        writeShort(block, 14, 2);
+        writeShort(block, 16, blockSize - 1);
+        int footer = Bgzf.HEADER_SIZE + compressedLength;
+        writeInt(block, footer, (int) crc.getValue());
+        writeInt(block, footer + 4, length);
+        out.write(block, 0, blockSize);
+        length = 0;
+    }
+
+    private static void writeShort(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >>> 8);
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        writeShort(buffer, offset, value);
+        writeShort(buffer, offset + 2, value >>> 16);
+    }
+}
@@ -0,0 +1,244 @@
+package com.databerries;
+
+import com.databerries.tree.ArrayKdTree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.function.IntFunction;
+
+/**
+ * Makes a run resumable.
+ *
+ * The output is written in chunk order, so the progress of a run is a number of chunks plus the
+ * size of the output file they were written to. At most every interval, the output is synced and
+ * this progress is committed to a manifest, which is replaced atomically. The manifest also holds
+ * the settings of the run (input hash, threshold, options, chunk layout): a restart with the same
+ * settings truncates the output to the committed size and resumes after the committed chunks,
+ * otherwise it starts over.
+ *
+ * The kd-tree is persisted next to the manifest, as its points in tree order, so that a restart
+ * reads back the same tree instead of sorting the points again.
+ */
+class Checkpoint implements OrderedWriter.Target, OrderedWriter.Listener {
+    private static final Logger LOG = LoggerFactory.getLogger(Checkpoint.class);
+
+    private static final String MANIFEST = "manifest.properties";
+    private static final String INDEX = "index.bin";
+    private static final int INDEX_VERSION = 2;
+
+    private static final String CHUNKS = "chunks";
+    private static final String PARTITION = "partition";
+    private static final String BYTES = "bytes";
+    private static final String COMPLETE = "complete";
+    private static final String INDEX_SAVED = "index";
+
+    private final Path directory;
+    private final Properties manifest;
+    private final IntFunction<Path> outputPaths;
+    private final boolean compress;
+    private final long totalChunks;
+    private final long intervalMillis;
+
+    private final long committedChunks;
+    private final int committedPartition;
+    private final long committedBytes;
+
+    private boolean firstOpen = true;
+    private Path path = null;
+    private FileOutputStream file = null;
+    private OutputStream stream = null;
+    private long lastCommit = System.currentTimeMillis();
+
+    private Checkpoint(Path directory, Properties manifest, IntFunction<Path> outputPaths, boolean compress, long totalChunks, long intervalMillis) {
+        this.directory = directory;
+        this.manifest = manifest;
+        this.outputPaths = outputPaths;
+        this.compress = compress;
+        this.totalChunks = totalChunks;
+        this.intervalMillis = intervalMillis;
+        this.committedChunks = Long.parseLong(manifest.getProperty(CHUNKS, "0"));
+        this.committedPartition = Integer.parseInt(manifest.getProperty(PARTITION, "-1"));
+        this.committedBytes = Long.parseLong(manifest.getProperty(BYTES, "0"));
+    }
+
+    /**
+     * Reads the manifest of a directory, starts over if its settings differ.
+     *
+     * @param settings
+     *            everything the output depends on.
+     * @param outputPaths
+     *            output file of each partition.
+     * @param compress
+     *            the output is BGZF.
+     * @param totalChunks
+     *            number of chunks of the run.
+     * @param intervalMillis
+     *            minimum time between two commits.
+     */
+    static Checkpoint open(Path directory, Properties settings, IntFunction<Path> outputPaths, boolean compress, long totalChunks, long intervalMillis) throws IOException {
+        Files.createDirectories(directory);
+        Properties manifest = new Properties();
+        Path manifestPath = directory.resolve(MANIFEST);
+        if (Files.exists(manifestPath)) {
+            try (InputStream inputStream = Files.newInputStream(manifestPath)) {
+                manifest.load(inputStream);
+            }
+        }
+        boolean resumable = !manifest.isEmpty();
+        for (String key : settings.stringPropertyNames()) {
+            if (!settings.getProperty(key).equals(manifest.getProperty(key)))
+                resumable = false;
+        }
+
+        if (!resumable) {
+            if (!manifest.isEmpty())
+                LOG.info("Settings differ from the checkpoint in {}, starting over.", directory);
+            Files.deleteIfExists(directory.resolve(INDEX));
+            manifest = new Properties();
+            manifest.putAll(settings);
+        }
+        Checkpoint checkpoint = new Checkpoint(directory, manifest, outputPaths, compress, totalChunks, intervalMillis);
+        if (resumable && !checkpoint.isComplete())
+            LOG.info("Resuming from checkpoint {} after {} chunks of {}.", directory, checkpoint.committedChunks, totalChunks);
+        checkpoint.writeManifest();
+        return checkpoint;
+    }
+
+    boolean isComplete() {
+        return Boolean.parseBoolean(manifest.getProperty(COMPLETE));
+    }
+
+    /**
+     * @return number of chunks already in the output.
+     */
+    long committedChunks() {
+        return committedChunks;
+    }
+
+    /**
+     * @param locations
+     *            locations of the input, the points of the kd-tree are indexes into them.
+     * @return the persisted kd-tree, or null if there is none.
+     */
+    ArrayKdTree loadIndex(Locations locations) throws IOException {
+        Path indexPath = directory.resolve(INDEX);
+        if (!Boolean.parseBoolean(manifest.getProperty(INDEX_SAVED)) || !Files.exists(indexPath))
+            return null;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath), 1024 * 1024))) {
+            if (input.readInt() != INDEX_VERSION)
+                return null;
+            ArrayKdTree kdTree = ArrayKdTree.read(input);
+            return kdTree.size() == locations.size() ? kdTree : null;
+        }
+    }
+
+    /**
+     * Persists a kd-tree built from the locations of the input.
+     */
+    void saveIndex(ArrayKdTree kdTree) throws IOException {
+        Path temporary = directory.resolve(INDEX + ".tmp");
+        try (FileOutputStream fileOutputStream = new FileOutputStream(temporary.toFile());
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutputStream, 1024 * 1024))) {
+            output.writeInt(INDEX_VERSION);
+            kdTree.write(output);
+            output.flush();
+            fileOutputStream.getFD().sync();
+        }
+        Files.move(temporary, directory.resolve(INDEX), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        manifest.setProperty(INDEX_SAVED, "true");
+        writeManifest();
+    }
+
+    @Override
+    public OutputStream open(int partition) throws IOException {
+        // The writer has closed the previous partition, make it durable before going on
+        sync(path);
+
+        boolean append = false;
+        if (firstOpen && committedChunks > 0) {
+            Path committedPath = outputPaths.apply(committedPartition);
+            truncate(committedPath, committedBytes);
+            if (partition == committedPartition) {
+                append = true;
+            } else if (compress) {
+                // The committed partition was complete but its end of file marker may be missing
+                try (OutputStream outputStream = Files.newOutputStream(committedPath, StandardOpenOption.APPEND)) {
+                    BgzfOutputStream.writeEndOfFile(outputStream);
+                }
+                sync(committedPath);
+            }
+        }
+        firstOpen = false;
+
+        path = outputPaths.apply(partition);
+        LOG.info("Writing file : {}{}.", path, append ? " (resumed)" : "");
+        file = new FileOutputStream(path.toFile(), append);
+        stream = new BufferedOutputStream(file, 1024 * 1024);
+        return stream;
+    }
+
+    @Override
+    public void written(long sequence, int partition) throws IOException {
+        // The last chunk is committed with the end of the output
+        if (sequence + 1 >= totalChunks)
+            return;
+        long now = System.currentTimeMillis();
+        if (now - lastCommit < intervalMillis)
+            return;
+        lastCommit = now;
+
+        stream.flush();
+        file.getFD().sync();
+        manifest.setProperty(CHUNKS, Long.toString(sequence + 1));
+        manifest.setProperty(PARTITION, Integer.toString(partition));
+        manifest.setProperty(BYTES, Long.toString(file.getChannel().size()));
+        writeManifest();
+    }
+
+    @Override
+    public void closed() throws IOException {
+        sync(path);
+        manifest.setProperty(CHUNKS, Long.toString(totalChunks));
+        manifest.setProperty(COMPLETE, "true");
+        writeManifest();
+    }
+
+    private void writeManifest() throws IOException {
+        Path temporary = directory.resolve(MANIFEST + ".tmp");
+        try (FileOutputStream outputStream = new FileOutputStream(temporary.toFile())) {
+            manifest.store(outputStream, "nearest-tz checkpoint");
+            outputStream.getFD().sync();
+        }
+        Files.move(temporary, directory.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void sync(Path path) throws IOException {
+        if (path == null)
+            return;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    private static void truncate(Path path, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            if (channel.size() < size)
+                throw new IOException("Output " + path + " is shorter than its checkpoint, " + channel.size() + " < " + size + " bytes");
+            channel.truncate(size);
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package com.databerries;
+
+import com.databerries.tree.XYZPoint;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Columnar view of a parsed csv file (latitude,longitude,timezone).
+ *
+ * The file is kept as raw segments, each row is described by its latitude, its longitude,
+ * the id of its timezone and the offset of the line in the segment. That is 24 bytes per row
+ * on top of the source bytes, which are kept for the pass-through output.
+ *
+ * The rows having a timezone are the reference: their coordinates are given as columns to build
+ * an index, whose points are identified by their position in {@link #locations()}.
+ */
+public class Dataset {
+    public static final int UNDEFINED_TIMEZONE = -1;
+
+    private static final String TIMEZONE_UNDEFINED = "null";
+    private static final byte[] TIMEZONE_UNDEFINED_BYTES = TIMEZONE_UNDEFINED.getBytes(StandardCharsets.UTF_8);
+
+    private final List<Segment> segments;
+    private final String[] timezones;
+    private final byte[][] timezoneBytes;
+    private final long size;
+
+    private Dataset(List<Segment> segments, String[] timezones) {
+        this.segments = segments;
+        this.timezones = timezones;
+        this.timezoneBytes = new byte[timezones.length][];
+        for (int i = 0; i < timezones.length; i++) {
+            timezoneBytes[i] = timezones[i].getBytes(StandardCharsets.UTF_8);
+        }
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        this.size = size;
+    }
+
+    /**
+     * Reads and parses a file, each segment is parsed by its own task.
+     *
+     * @param filename
+     *            path to a csv (it can be gzip).
+     * @param numberOfSegment
+     *            minimum number of segments.
+     * @param executorService
+     *            executor running the read and parse tasks.
+     * @return the dataset.
+     */
+    public static Dataset load(String filename, int numberOfSegment, ExecutorService executorService) throws IOException, ExecutionException, InterruptedException {
+        return parse(read(filename, numberOfSegment, executorService), executorService);
+    }
+
+    /**
+     * Reads and parses several files as a single dataset, sharing one timezone dictionary.
+     */
+    public static Dataset load(List<String> filenames, int numberOfSegment, ExecutorService executorService) throws IOException, ExecutionException, InterruptedException {
+        List<byte[]> sources = new ArrayList<>();
+        for (String filename : filenames) {
+            sources.addAll(read(filename, numberOfSegment, executorService));
+        }
+        return parse(sources, executorService);
+    }
+
+    private static List<byte[]> read(String filename, int numberOfSegment, ExecutorService executorService) throws IOException, ExecutionException, InterruptedException {
+        Events.Read event = new Events.Read();
+        event.begin();
+        List<byte[]> sources = IOUtils.readSegments(filename, numberOfSegment, executorService);
+        event.file = filename;
+        for (byte[] source : sources) {
+            event.bytes += source.length;
+        }
+        event.segments = sources.size();
+        event.commit();
+        return sources;
+    }
+
+    static Dataset parse(List<byte[]> sources, ExecutorService executorService) throws ExecutionException, InterruptedException {
+        Events.Parse event = new Events.Parse();
+        event.begin();
+        Map<String, Integer> dictionary = new ConcurrentHashMap<>();
+        AtomicInteger nextId = new AtomicInteger();
+        List<Future<Segment>> futures = new ArrayList<>(sources.size());
+        for (byte[] source : sources) {
+            futures.add(executorService.submit(() -> Segment.parse(source, dictionary, nextId)));
+        }
+        List<Segment> segments = new ArrayList<>(futures.size());
+        for (Future<Segment> future : futures) {
+            segments.add(future.get());
+        }
+
+        String[] timezones = new String[dictionary.size()];
+        dictionary.forEach((timezone, id) -> timezones[id] = timezone);
+        Dataset dataset = new Dataset(segments, timezones);
+        event.rows = dataset.size;
+        event.segments = segments.size();
+        event.timezones = timezones.length;
+        event.commit();
+        return dataset;
+    }
+
+    /**
+     * Parses a segment on its own, for a file streamed one segment at a time. Its timezone ids
+     * only tell whether a row has a timezone, they are not shared with any other segment.
+     */
+    static Segment parseSegment(byte[] source) {
+        return Segment.parse(source, new HashMap<>(), new AtomicInteger());
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    public Segment segment(int index) {
+        return segments.get(index);
+    }
+
+    public int timezoneCount() {
+        return timezones.length;
+    }
+
+    /**
+     * @return SHA-256 of the source bytes, in hexadecimal.
+     */
+    public String contentHash() {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (Segment segment : segments) {
+            digest.update(segment.source);
+        }
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest.digest()) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    public String timezone(int tzId) {
+        return tzId == UNDEFINED_TIMEZONE ? null : timezones[tzId];
+    }
+
+    /**
+     * @return id of a timezone, {@link #UNDEFINED_TIMEZONE} if no row has it.
+     */
+    public int timezoneId(String timezone) {
+        for (int i = 0; i < timezones.length; i++) {
+            if (timezones[i].equals(timezone))
+                return i;
+        }
+        return UNDEFINED_TIMEZONE;
+    }
+
+    public byte[] timezoneBytes(int tzId) {
+        return tzId == UNDEFINED_TIMEZONE ? null : timezoneBytes[tzId];
+    }
+
+    /**
+     * Collects the timezones of the rows having one.
+     *
+     * @return locations, they share the timezone bytes of the dictionary.
+     */
+    Locations locations() {
+        Events.DefinedLocations event = new Events.DefinedLocations();
+        event.begin();
+        int[] timezoneIds = new int[locationCount()];
+        int location = 0;
+        for (Segment segment : segments) {
+            for (int row = 0; row < segment.size; row++) {
+                if (segment.tzId[row] != UNDEFINED_TIMEZONE)
+                    timezoneIds[location++] = segment.tzId[row];
+            }
+        }
+        event.rows = size;
+        event.locations = timezoneIds.length;
+        event.commit();
+        return new Locations(timezoneIds, timezoneBytes);
+    }
+
+    /**
+     * Converts the coordinates of the rows having a timezone, in the order of {@link #locations()}.
+     *
+     * @return new x, y and z columns, on a sphere of radius {@link XYZPoint#EARTH_RADIUS}.
+     */
+    public double[][] locationCoordinates() {
+        int count = locationCount();
+        double[] x = new double[count];
+        double[] y = new double[count];
+        double[] z = new double[count];
+        int location = 0;
+        for (Segment segment : segments) {
+            for (int row = 0; row < segment.size; row++) {
+                if (segment.tzId[row] != UNDEFINED_TIMEZONE) {
+                    x[location] = XYZPoint.toX(XYZPoint.EARTH_RADIUS, segment.lat[row], segment.lon[row]);
+                    y[location] = XYZPoint.toY(XYZPoint.EARTH_RADIUS, segment.lat[row], segment.lon[row]);
+                    z[location] = XYZPoint.toZ(XYZPoint.EARTH_RADIUS, segment.lat[row]);
+                    location++;
+                }
+            }
+        }
+        return new double[][]{x, y, z};
+    }
+
+    private int locationCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            for (int row = 0; row < segment.size; row++) {
+                if (segment.tzId[row] != UNDEFINED_TIMEZONE)
+                    count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * A contiguous part of the file, ending on a line boundary.
+     */
+    public static final class Segment {
+        private final byte[] source;
+        private final int size;
+        private final int[] offsets;
+        private final double[] lat;
+        private final double[] lon;
+        private final int[] tzId;
+
+        private Segment(byte[] source, int size) {
+            this.source = source;
+            this.size = size;
+            this.offsets = new int[size + 1];
+            this.lat = new double[size];
+            this.lon = new double[size];
+            this.tzId = new int[size];
+        }
+
+        private static Segment parse(byte[] source, Map<String, Integer> dictionary, AtomicInteger nextId) {
+            Segment segment = new Segment(source, countLines(source));
+            // Avoid contention on the shared dictionary
+            Map<String, Integer> localDictionary = new HashMap<>();
+
+            int row = 0;
+            int start = 0;
+            while (start < source.length) {
+                int end = lineEnd(source, start);
+                int contentEnd = end;
+                if (contentEnd > start && source[contentEnd - 1] == '\r')
+                    contentEnd--;
+                if (contentEnd > start) {
+                    int firstComma = indexOf(source, start, contentEnd, (byte) ',');
+                    int secondComma = indexOf(source, firstComma + 1, contentEnd, (byte) ',');
+                    if (firstComma < 0 || secondComma < 0)
+                        throw new IllegalArgumentException("Malformed line: " + new String(source, start, contentEnd - start, StandardCharsets.UTF_8));
+
+                    segment.offsets[row] = start;
+                    segment.lat[row] = parseDouble(source, start, firstComma);
+                    segment.lon[row] = parseDouble(source, firstComma + 1, secondComma);
+                    int tzStart = secondComma + 1;
+                    if (isUndefined(source, tzStart, contentEnd)) {
+                        segment.tzId[row] = UNDEFINED_TIMEZONE;
+                    } else {
+                        String timezone = new String(source, tzStart, contentEnd - tzStart, StandardCharsets.UTF_8);
+                        Integer id = localDictionary.get(timezone);
+                        if (id == null) {
+                            id = dictionary.computeIfAbsent(timezone, key -> nextId.getAndIncrement());
+                            localDictionary.put(timezone, id);
+                        }
+                        segment.tzId[row] = id;
+                    }
+                    row++;
+                }
+                start = end + 1;
+            }
+            segment.offsets[row] = source.length;
+            return segment;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public double latitude(int row) {
+            return lat[row];
+        }
+
+        public double longitude(int row) {
+            return lon[row];
+        }
+
+        public int timezoneId(int row) {
+            return tzId[row];
+        }
+
+        /**
+         * Writes the source line of a row, with the undefined timezone replaced.
+         *
+         * @param row
+         *            row to write.
+         * @param timezone
+         *            bytes of the timezone replacing "null", or null to write the line as is.
+         * @param outputStream
+         *            destination.
+         */
+        public void writeLine(int row, byte[] timezone, OutputStream outputStream) throws IOException {
+            int start = offsets[row];
+            int end = lineEnd(source, start);
+            if (timezone == null) {
+                outputStream.write(source, start, end - start);
+            } else {
+                int tzStart = lastIndexOf(source, start, end, (byte) ',') + 1;
+                outputStream.write(source, start, tzStart - start);
+                outputStream.write(timezone);
+                int tzEnd = tzStart + TIMEZONE_UNDEFINED_BYTES.length;
+                outputStream.write(source, tzEnd, end - tzEnd);
+            }
+            outputStream.write('\n');
+        }
+
+        private static int countLines(byte[] source) {
+            int count = 0;
+            int start = 0;
+            while (start < source.length) {
+                int end = lineEnd(source, start);
+                int contentEnd = end;
+                if (contentEnd > start && source[contentEnd - 1] == '\r')
+                    contentEnd--;
+                if (contentEnd > start)
+                    count++;
+                start = end + 1;
+            }
+            return count;
+        }
+
+        private static int lineEnd(byte[] source, int start) {
+            int end = indexOf(source, start, source.length, (byte) '\n');
+            return end < 0 ? source.length : end;
+        }
+
+        private static int indexOf(byte[] source, int from, int to, byte value) {
+            for (int i = from; i < to; i++) {
+                if (source[i] == value)
+                    return i;
+            }
+            return -1;
+        }
+
+        private static int lastIndexOf(byte[] source, int from, int to, byte value) {
+            for (int i = to - 1; i >= from; i--) {
+                if (source[i] == value)
+                    return i;
+            }
+            return -1;
+        }
+
+        private static boolean isUndefined(byte[] source, int from, int to) {
+            if (to - from != TIMEZONE_UNDEFINED_BYTES.length)
+                return false;
+            for (int i = 0; i < TIMEZONE_UNDEFINED_BYTES.length; i++) {
+                if (source[from + i] != TIMEZONE_UNDEFINED_BYTES[i])
+                    return false;
+            }
+            return true;
+        }
+
+        private static double parseDouble(byte[] source, int from, int to) {
+            return Double.parseDouble(new String(source, from, to - from, StandardCharsets.US_ASCII));
+        }
+    }
+}
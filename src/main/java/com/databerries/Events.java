@@ -0,0 +1,164 @@
+package com.databerries;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder events of the phases of a run, recorded with
+ * -XX:StartFlightRecording or jcmd JFR.start and shown under "nearest-tz".
+ *
+ * Events cost nothing more than their allocation when the recorder is off, except the query
+ * events which are only created for one row out of {@link #QUERY_SAMPLE_INTERVAL}, and only
+ * while they are recorded, so that the searches allocate nothing otherwise.
+ */
+final class Events {
+    /**
+     * A row is sampled when its index in its segment is a multiple of this interval.
+     */
+    static final int QUERY_SAMPLE_INTERVAL = 1024;
+
+    private static final EventType QUERY_TYPE = EventType.getEventType(Query.class);
+
+    private Events() { }
+
+    /**
+     * @return true if query events are recorded.
+     */
+    static boolean isQueryEnabled() {
+        return QUERY_TYPE.isEnabled();
+    }
+
+    @Name("com.databerries.Read")
+    @Label("Read")
+    @Category({"nearest-tz", "Phase"})
+    @Description("Reading a file into segments")
+    @StackTrace(false)
+    static final class Read extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Bytes")
+        @DataAmount(DataAmount.BYTES)
+        long bytes;
+
+        @Label("Segments")
+        int segments;
+    }
+
+    @Name("com.databerries.Parse")
+    @Label("Parse")
+    @Category({"nearest-tz", "Phase"})
+    @Description("Parsing segments into rows")
+    @StackTrace(false)
+    static final class Parse extends Event {
+        @Label("Rows")
+        long rows;
+
+        @Label("Segments")
+        int segments;
+
+        @Label("Timezones")
+        int timezones;
+    }
+
+    @Name("com.databerries.DefinedLocations")
+    @Label("Defined Locations")
+    @Category({"nearest-tz", "Phase"})
+    @Description("Collecting the locations having a timezone")
+    @StackTrace(false)
+    static final class DefinedLocations extends Event {
+        @Label("Rows")
+        long rows;
+
+        @Label("Locations")
+        int locations;
+    }
+
+    @Name("com.databerries.TreeBuild")
+    @Label("Tree Build")
+    @Category({"nearest-tz", "Phase"})
+    @Description("Building or loading the kd-tree")
+    @StackTrace(false)
+    static final class TreeBuild extends Event {
+        @Label("Points")
+        int points;
+
+        @Label("Loaded")
+        @Description("Loaded from a checkpoint instead of built")
+        boolean loaded;
+
+        @Label("Lazy")
+        @Description("Partitioned on first use")
+        boolean lazy;
+    }
+
+    @Name("com.databerries.Chunk")
+    @Label("Chunk")
+    @Category({"nearest-tz", "Phase"})
+    @Description("Resolving a chunk of rows into its buffer")
+    @StackTrace(false)
+    static final class Chunk extends Event {
+        @Label("Sequence")
+        long sequence;
+
+        @Label("Rows")
+        int rows;
+
+        @Label("Searches")
+        int searches;
+
+        @Label("Bytes")
+        @DataAmount(DataAmount.BYTES)
+        long bytes;
+    }
+
+    @Name("com.databerries.Write")
+    @Label("Write")
+    @Category({"nearest-tz", "Phase"})
+    @Description("Writing a partition of the output, from its opening to its closing")
+    @StackTrace(false)
+    static final class Write extends Event {
+        @Label("Partition")
+        int partition;
+
+        @Label("Chunks")
+        long chunks;
+
+        @Label("Bytes")
+        @DataAmount(DataAmount.BYTES)
+        long bytes;
+    }
+
+    @Name("com.databerries.Query")
+    @Label("Query")
+    @Category({"nearest-tz", "Query"})
+    @Description("Nearest location search of a sampled row")
+    @StackTrace(false)
+    static final class Query extends Event {
+        @Label("Latitude")
+        double latitude;
+
+        @Label("Longitude")
+        double longitude;
+
+        @Label("Nodes Visited")
+        int nodesVisited;
+
+        @Label("Distance")
+        @Description("Distance in km to the nearest location found")
+        double distance;
+
+        @Label("Exact")
+        boolean exact;
+
+        @Label("Resolved")
+        @Description("The nearest location is closer than the threshold")
+        boolean resolved;
+    }
+}
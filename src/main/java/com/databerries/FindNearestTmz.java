@@ -1,100 +1,375 @@
 package com.databerries;
 
-import com.databerries.tree.KdTree;
+import com.databerries.tree.ArrayKdTree;
+import com.databerries.tree.DualTreeJoin;
+import com.databerries.tree.LazyKdTree;
+import com.databerries.tree.NearestNeighbourIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
-import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Properties;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.stream.Collectors;
-
-import static com.databerries.IOUtils.readLines;
+import java.util.function.IntFunction;
 
 public class FindNearestTmz {
     private static final Logger LOG = LoggerFactory.getLogger(FindNearestTmz.class);
 
-    private static final String TIMEZONE_UNDEFINED = "null";
+    /**
+     * Number of rows resolved by a task and written as one chunk.
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
 
     public static void main(String[] args) throws IOException, URISyntaxException, ExecutionException, InterruptedException {
-        if (args.length != 2) {
-            LOG.error("java -jar nearest-tz.jar source_file.{csv|gz} threshold_in_km");
+        Arguments arguments = Arguments.parse(args);
+        if (arguments.positionalCount() != 2) {
+            LOG.error("java -jar nearest-tz.jar source_file.{csv|gz} threshold_in_km [--reference=file|directory|glob [--output-directory=directory] [--parallel-files=n]] [--partitioned] [--epsilon=e] [--max-visited=n] [--recheck-km=km] [--shards=faces|octants] [--processes=n] [--checkpoint[=directory]] [--checkpoint-interval=seconds] [--lazy-index] [--dual-tree] [--tree-stats]");
+            return;
+        }
+        String inputFile = arguments.positional(0);
+        int maxDistanceInKm = Integer.parseInt(arguments.positional(1));
+        boolean partitioned = arguments.has("partitioned");
+
+        int numberOfBatch = Runtime.getRuntime().availableProcessors();
+        ExecutorService executorService = Executors.newFixedThreadPool(numberOfBatch);
+
+        if (arguments.has("reference")) {
+            try {
+                runBatch(arguments, inputFile, maxDistanceInKm, executorService, numberOfBatch);
+            } finally {
+                executorService.shutdown();
+            }
+            LOG.info("DONE");
+            return;
+        }
+
+        if (arguments.has("shards")) {
+            if (arguments.has("checkpoint"))
+                LOG.warn("--checkpoint is ignored with --shards.");
+            executorService.shutdown();
+            runSharded(arguments, inputFile, maxDistanceInKm);
+            LOG.info("DONE");
             return;
         }
-        String inputFile = args[0];
-        int maxDistanceInKm = Integer.parseInt(args[1]);
 
         LOG.info("Reading file");
-        final List<String> lines = readLines(inputFile);
+        final Dataset dataset = Dataset.load(inputFile, numberOfBatch, executorService);
+
+        // A gzip input gets a gzip output, compressed by the workers
+        final boolean compress = IOUtils.isGzip(inputFile);
+        Path parentDirectory = Paths.get(inputFile).toAbsolutePath().getParent();
+        LOG.info("output directory {}.", parentDirectory);
+        IntFunction<Path> outputPaths = partition -> Paths.get(parentDirectory.toString(),
+                (partitioned ? "output_" + partition : "output") + (compress ? ".gz" : ""));
+
+        long numberOfChunk = 0;
+        for (int i = 0; i < dataset.segmentCount(); i++) {
+            numberOfChunk += (dataset.segment(i).size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        }
+
+        Checkpoint checkpoint = null;
+        if (arguments.has("checkpoint")) {
+            Path directory = Paths.get(arguments.get("checkpoint", parentDirectory.resolve("checkpoint").toString()));
+            long intervalMillis = 1000L * arguments.getInt("checkpoint-interval", 10);
+            checkpoint = Checkpoint.open(directory, checkpointSettings(arguments, dataset, inputFile, maxDistanceInKm),
+                    outputPaths, compress, numberOfChunk, intervalMillis);
+            if (checkpoint.isComplete()) {
+                LOG.info("Checkpoint {} is complete, nothing to do.", directory);
+                executorService.shutdown();
+                return;
+            }
+        }
+
+        final Locations locations = dataset.locations();
+        final Resolver resolver = arguments.has("dual-tree")
+                ? createJoinResolver(arguments, dataset, locations, maxDistanceInKm)
+                : createResolver(arguments, locations, loadOrBuildIndex(arguments, dataset, locations, checkpoint), maxDistanceInKm);
+
+        OrderedWriter.Target target = partition -> {
+            Path outputPath = outputPaths.apply(partition);
+            LOG.info("Writing file : {}.", outputPath);
+            return new BufferedOutputStream(Files.newOutputStream(outputPath), 1024 * 1024);
+        };
+        int numberOfBuffer = 2 * numberOfBatch + 1;
+        long firstChunk = checkpoint == null ? 0 : checkpoint.committedChunks();
+
+        LOG.info("Number of segment : {}, number of element : {}, number of chunk : {}.", dataset.segmentCount(), dataset.size(), numberOfChunk);
+        try (OrderedWriter writer = checkpoint == null
+                ? new OrderedWriter(target, compress, numberOfBuffer)
+                : new OrderedWriter(checkpoint, checkpoint, compress, numberOfBuffer, firstChunk)) {
+            submitChunks(dataset, resolver, writer, executorService, partitioned, firstChunk);
+            LOG.info("waiting job done.");
+        } finally {
+            executorService.shutdown();
+        }
+        logSearches(resolver);
+        LOG.info("DONE");
+    }
+
+    /**
+     * Builds the index from the reference files, then resolves every query file against it.
+     *
+     * @param queryPattern
+     *            a query file, a directory of query files or a glob.
+     */
+    private static void runBatch(Arguments arguments, String queryPattern, int maxDistanceInKm, ExecutorService executorService, int numberOfBatch) throws IOException, InterruptedException, ExecutionException {
+        for (String option : new String[]{"partitioned", "shards", "checkpoint"}) {
+            if (arguments.has(option))
+                LOG.warn("--{} is ignored with --reference.", option);
+        }
+        String referencePattern = arguments.get("reference", "");
+        List<Path> referenceFiles = IOUtils.listFiles(referencePattern);
+        if (referenceFiles.isEmpty())
+            throw new IOException("No reference file matches " + referencePattern);
+        Path queryDirectory = IOUtils.baseDirectory(queryPattern);
+        Path outputDirectory = Paths.get(arguments.get("output-directory", queryDirectory.toAbsolutePath().resolve("output").toString()));
+        List<Path> queryFiles = withoutOutputs(IOUtils.listFiles(queryPattern), outputDirectory);
+
+        Resolver resolver = createReferenceResolver(arguments, referenceFiles, maxDistanceInKm, executorService, numberOfBatch);
+
+        LOG.info("Resolving {} query files, output directory {}.", queryFiles.size(), outputDirectory);
+        BatchResolver batchResolver = new BatchResolver(resolver, queryDirectory, outputDirectory, executorService, numberOfBatch);
+        long rows = batchResolver.run(queryFiles, arguments.getInt("parallel-files", 2));
+        LOG.info("Number of query file : {}, number of element : {}, number of location : {}.", queryFiles.size(), rows, resolver.locationCount());
+        logSearches(resolver);
+    }
+
+    /**
+     * Loads the reference files and builds the resolver over them. The reference dataset, with its
+     * source bytes, is only reachable from here: the resolver keeps the index and the timezones
+     * of the locations, the rest is released before the queries are read.
+     */
+    private static Resolver createReferenceResolver(Arguments arguments, List<Path> referenceFiles, int maxDistanceInKm,
+                                                    ExecutorService executorService, int numberOfBatch) throws IOException, InterruptedException, ExecutionException {
+        LOG.info("Reading {} reference files", referenceFiles.size());
+        List<String> referenceFilenames = new ArrayList<>();
+        for (Path referenceFile : referenceFiles) {
+            referenceFilenames.add(referenceFile.toString());
+        }
+        Dataset reference = Dataset.load(referenceFilenames, numberOfBatch, executorService);
+        Locations locations = reference.locations();
+        return arguments.has("dual-tree")
+                ? createJoinResolver(arguments, reference, locations, maxDistanceInKm)
+                : createResolver(arguments, locations, buildIndex(arguments, reference), maxDistanceInKm);
+    }
+
+    /**
+     * Removes the files of the output directory, so that a glob reaching it does not take the
+     * outputs of a previous run as queries.
+     */
+    private static List<Path> withoutOutputs(List<Path> queryFiles, Path outputDirectory) {
+        Path directory = outputDirectory.toAbsolutePath().normalize();
+        List<Path> result = new ArrayList<>();
+        for (Path queryFile : queryFiles) {
+            if (queryFile.toAbsolutePath().normalize().startsWith(directory))
+                LOG.info("Skipping {}, it is in the output directory.", queryFile);
+            else
+                result.add(queryFile);
+        }
+        return result;
+    }
+
+    /**
+     * Loads the kd-tree persisted by the checkpoint, otherwise builds the index and persists it
+     * if it is an {@link ArrayKdTree}.
+     */
+    private static NearestNeighbourIndex loadOrBuildIndex(Arguments arguments, Dataset dataset, Locations locations, Checkpoint checkpoint) throws IOException {
+        // A lazy index is cheaper to build again than to load
+        if (arguments.has("lazy-index"))
+            return buildIndex(arguments, dataset);
+        Events.TreeBuild loadEvent = new Events.TreeBuild();
+        loadEvent.begin();
+        ArrayKdTree kdTree = checkpoint == null ? null : checkpoint.loadIndex(locations);
+        if (kdTree == null) {
+            kdTree = buildTree(dataset);
+            if (checkpoint != null)
+                checkpoint.saveIndex(kdTree);
+        } else {
+            LOG.info("Kdtree loaded from checkpoint");
+            loadEvent.points = kdTree.size();
+            loadEvent.loaded = true;
+            loadEvent.commit();
+        }
+        logStatistics(arguments, kdTree);
+        return kdTree;
+    }
 
+    /**
+     * Builds a {@link LazyKdTree} if --lazy-index is given, an {@link ArrayKdTree} otherwise.
+     */
+    private static NearestNeighbourIndex buildIndex(Arguments arguments, Dataset dataset) {
+        if (!arguments.has("lazy-index")) {
+            ArrayKdTree kdTree = buildTree(dataset);
+            logStatistics(arguments, kdTree);
+            return kdTree;
+        }
+        double[][] coordinates = dataset.locationCoordinates();
+        LOG.info("Feeding lazy kdtree");
+        Events.TreeBuild event = new Events.TreeBuild();
+        event.begin();
+        LazyKdTree lazyKdTree = new LazyKdTree(coordinates[0], coordinates[1], coordinates[2]);
+        event.points = lazyKdTree.size();
+        event.lazy = true;
+        event.commit();
+        return lazyKdTree;
+    }
+
+    private static ArrayKdTree buildTree(Dataset dataset) {
+        double[][] coordinates = dataset.locationCoordinates();
         LOG.info("Feeding kdtree");
-        final KdTree<Location> kdTree = new KdTree<>(filterUndefinedLocation(lines));
+        Events.TreeBuild event = new Events.TreeBuild();
+        event.begin();
+        ArrayKdTree kdTree = new ArrayKdTree(coordinates[0], coordinates[1], coordinates[2]);
+        event.points = kdTree.size();
+        event.commit();
+        return kdTree;
+    }
 
-        int numberOfBatch = Runtime.getRuntime().availableProcessors();
-        int batchSize = lines.size() / numberOfBatch;
-        LOG.info("Number of job : {}, number of element / job {}.", numberOfBatch, batchSize);
-        ExecutorService executorService = Executors.newFixedThreadPool(batchSize);
-
-        List<Future<List<String>>> futures = new ArrayList<>();
-        for (int i = 0; i < numberOfBatch; i++) {
-            int from = i * batchSize;
-            int to = from + batchSize;
-            futures.add(executorService.submit(() -> {
-                List<String> lineProcessed = new ArrayList<>(batchSize);
-                for (int j = from; j < to; j++) {
-                    String line = lines.get(j);
-                    if (!hasTimezone(line)) {
-                        String[] splitLine = line.split(",");
-                        List<KdTree.XYZDistancePoint> locations = kdTree.nearestNeighbourSearch(1, Location.create(Double.valueOf(splitLine[0]), Double.valueOf(splitLine[1]), ""));
-                        if (!locations.isEmpty()) {
-                            KdTree.XYZDistancePoint location = locations.get(0);
-                            if (location.getDistance() < maxDistanceInKm) {
-                                lineProcessed.add(line.replaceFirst("null", ((Location) location.getPoint()).getTimezone()));
-                            }
-                        }
-                    } else {
-                        lineProcessed.add(line);
+    /**
+     * Logs the shape of the kd-tree if --tree-stats is given.
+     */
+    private static void logStatistics(Arguments arguments, ArrayKdTree kdTree) {
+        if (arguments.has("tree-stats"))
+            LOG.info("Kdtree statistics : {}.", kdTree.statistics());
+    }
+
+    private static void logSearches(Resolver resolver) {
+        NearestNeighbourIndex index = resolver.index();
+        if (resolver.isApproximate()) {
+            LOG.info("Searches : {}, approximate : {}, rechecked : {}, corrected by recheck : {}.",
+                    resolver.searched(), resolver.approximated(), resolver.rechecked(), resolver.corrected());
+        }
+        if (index instanceof LazyKdTree) {
+            LazyKdTree lazyKdTree = (LazyKdTree) index;
+            LOG.info("Lazy kdtree : {} nodes split, {} points partitioned for {} points.",
+                    lazyKdTree.splitNodes(), lazyKdTree.partitionedPoints(), lazyKdTree.size());
+        }
+    }
+
+    /**
+     * Submits a task per chunk of the dataset, each one resolves its rows into a buffer of the
+     * writer. Returns once the last chunk is submitted.
+     *
+     * @param partitioned
+     *            each segment is a partition of the output.
+     * @param firstChunk
+     *            chunks before it are already written.
+     */
+    static void submitChunks(Dataset dataset, Resolver resolver, OrderedWriter writer, ExecutorService executorService,
+                             boolean partitioned, long firstChunk) throws IOException, InterruptedException {
+        long chunk = 0;
+        for (int i = 0; i < dataset.segmentCount(); i++) {
+            Dataset.Segment segment = dataset.segment(i);
+            for (int from = 0; from < segment.size(); from += CHUNK_SIZE, chunk++) {
+                if (chunk < firstChunk)
+                    continue;
+                int to = Math.min(segment.size(), from + CHUNK_SIZE);
+                int start = from;
+                // Blocks while too many chunks are waiting to be written
+                OrderedWriter.Buffer buffer = writer.acquire(partitioned ? i : 0);
+                long sequence = chunk;
+                executorService.submit(() -> {
+                    try {
+                        Events.Chunk event = new Events.Chunk();
+                        event.begin();
+                        event.searches = resolver.resolve(segment, start, to, buffer.stream());
+                        event.bytes = writer.submit(buffer);
+                        event.sequence = sequence;
+                        event.rows = to - start;
+                        event.commit();
+                    } catch (Throwable t) {
+                        writer.fail(t);
                     }
-                }
-                return lineProcessed;
-            }));
+                });
+            }
+        }
+    }
+
+    /**
+     * Resolves the input file with one worker process per region of the sphere.
+     */
+    private static void runSharded(Arguments arguments, String inputFile, int maxDistanceInKm) throws IOException, InterruptedException, ExecutionException {
+        ShardCoordinator.Partitioning partitioning = ShardCoordinator.Partitioning.valueOf(arguments.get("shards", "faces").toUpperCase());
+        int numberOfProcess = arguments.getInt("processes", 2);
+        boolean compress = IOUtils.isGzip(inputFile);
+        Path parentDirectory = Paths.get(inputFile).toAbsolutePath().getParent();
+        Path outputPath = Paths.get(parentDirectory.toString(), "output" + (compress ? ".gz" : ""));
+        LOG.info("Sharding by {} with {} processes, output file : {}.", partitioning, numberOfProcess, outputPath);
+
+        for (String option : new String[]{"partitioned", "lazy-index", "dual-tree", "tree-stats"}) {
+            if (arguments.has(option))
+                LOG.warn("--{} is ignored with --shards.", option);
+        }
+        // Only the options the output depends on, the workers run the default index
+        ShardCoordinator coordinator = new ShardCoordinator(inputFile, partitioning, maxDistanceInKm, parentDirectory.resolve("shards"),
+                arguments.selectedOptions("epsilon", "max-visited", "recheck-km"));
+        OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(outputPath), 1024 * 1024);
+        try (OutputStream output = compress ? new BgzfOutputStream(outputStream) : outputStream) {
+            coordinator.run(output, numberOfProcess);
         }
-        LOG.info("waiting job done {}.", futures.size());
-        Path parentDirectory = Paths.get(inputFile).getParent();
-        LOG.info("output directory {}.", parentDirectory);
-        for (int i = 0; i < futures.size(); i++) {
-            Path outputPath = Paths.get(parentDirectory.toString(), "output_" + i);
-            Files.write(outputPath,
-                    futures.get(i).get(),
-                    Charset.defaultCharset());
-            LOG.info("Task {} done , data dumped in file : {}.", i, outputPath);
-        }
-        executorService.shutdown();
-        LOG.info("DONE");
     }
 
-    private static Location strToLocation(String e) {
-        String[] coordinates = e.split(",");
-        return Location.create(Double.valueOf(coordinates[0]), Double.valueOf(coordinates[1]), coordinates[2]);
+    /**
+     * Everything the output depends on: a checkpoint is only resumed if they are the same.
+     */
+    static Properties checkpointSettings(Arguments arguments, Dataset dataset, String inputFile, int maxDistanceInKm) {
+        LOG.info("Hashing input");
+        StringBuilder layout = new StringBuilder().append(CHUNK_SIZE);
+        for (int i = 0; i < dataset.segmentCount(); i++) {
+            layout.append(',').append(dataset.segment(i).size());
+        }
+        List<String> options = arguments.options("checkpoint", "checkpoint-interval");
+        Collections.sort(options);
+
+        Properties settings = new Properties();
+        settings.setProperty("input", Paths.get(inputFile).toAbsolutePath().toString());
+        settings.setProperty("inputHash", dataset.contentHash());
+        settings.setProperty("threshold", Integer.toString(maxDistanceInKm));
+        settings.setProperty("options", String.join(" ", options));
+        settings.setProperty("layout", layout.toString());
+        return settings;
     }
 
-    private static List<Location> filterUndefinedLocation(List<String> lines) {
-        return lines.stream()
-                .filter(FindNearestTmz::hasTimezone)
-                .map(FindNearestTmz::strToLocation)
-                .collect(Collectors.toList());
+    /**
+     * Creates a resolver joining each chunk with a {@link DualTreeJoin}, for --dual-tree.
+     */
+    private static Resolver createJoinResolver(Arguments arguments, Dataset dataset, Locations locations, int maxDistanceInKm) {
+        for (String option : new String[]{"epsilon", "max-visited", "recheck-km", "lazy-index"}) {
+            if (arguments.has(option))
+                LOG.warn("--{} is ignored with --dual-tree.", option);
+        }
+        double[][] coordinates = dataset.locationCoordinates();
+        LOG.info("Feeding dual tree join");
+        Events.TreeBuild event = new Events.TreeBuild();
+        event.begin();
+        DualTreeJoin join = new DualTreeJoin(coordinates[0], coordinates[1], coordinates[2]);
+        event.points = join.size();
+        event.commit();
+        return new Resolver(locations, join, maxDistanceInKm);
     }
 
-    private static boolean hasTimezone(String timezone) {
-        return !timezone.contains(TIMEZONE_UNDEFINED);
+    /**
+     * Creates an exact resolver, or an approximate one if --epsilon or --max-visited is given.
+     * --recheck-km alone defaults to the margin within which epsilon can change the decision.
+     */
+    private static Resolver createResolver(Arguments arguments, Locations locations, NearestNeighbourIndex index, int maxDistanceInKm) {
+        double epsilon = arguments.getDouble("epsilon", 0);
+        int maxVisitedNodes = arguments.getInt("max-visited", Integer.MAX_VALUE);
+        double recheckKm = arguments.has("recheck-km") ? arguments.getDouble("recheck-km", maxDistanceInKm * epsilon) : -1;
+        Resolver resolver = new Resolver(locations, index, maxDistanceInKm, epsilon, maxVisitedNodes, recheckKm);
+        if (resolver.isApproximate())
+            LOG.info("Approximate search, epsilon : {}, max visited nodes : {}, recheck margin : {} km.", epsilon, maxVisitedNodes, recheckKm);
+        return resolver;
     }
 }
@@ -1,38 +1,225 @@
 package com.databerries;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.zip.GZIPInputStream;
 
 class IOUtils {
-    private static List<String> decode(byte[] content) {
-        try {
-            GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(content));
-            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(gis, "UTF-8"));
-
-            String line;
-            List<String> locations = new ArrayList<>();
-            while ((line = bufferedReader.readLine()) != null) {
-                locations.add(line);
+    /**
+     * Upper bound of a segment, a segment is kept in a single byte array.
+     */
+    static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Reads a file as a list of segments. Each segment ends on a line boundary so
+     * it can be parsed independently of the others. A BGZF file is inflated in parallel,
+     * any other gzip file is inflated on the calling thread.
+     *
+     * @param filename
+     *            path to a csv, it can be gzip.
+     * @param numberOfSegment
+     *            minimum number of segments wanted, the file is cut in more segments if
+     *            they would be bigger than {@link #MAX_SEGMENT_SIZE}.
+     * @param executorService
+     *            used to read the segments of a plain file in parallel.
+     * @return segments in file order.
+     */
+    static List<byte[]> readSegments(String filename, int numberOfSegment, ExecutorService executorService) throws IOException, ExecutionException, InterruptedException {
+        if (isGzip(filename)) {
+            try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+                Bgzf.Index index = Bgzf.index(channel);
+                if (index != null)
+                    return Bgzf.readSegments(channel, index, numberOfSegment, executorService);
+            }
+            try (InputStream inputStream = new GZIPInputStream(Files.newInputStream(Paths.get(filename)), 64 * 1024)) {
+                return splitSegments(inputStream, MAX_SEGMENT_SIZE);
+            }
+        }
+        return readPlainSegments(Paths.get(filename), numberOfSegment, executorService);
+    }
+
+    /**
+     * Reads a file one segment at a time, so that a file of any size can be streamed. Each
+     * segment ends on a line boundary.
+     *
+     * @param filename
+     *            path to a csv, it can be gzip.
+     * @param consumer
+     *            receives the segments in file order.
+     */
+    static void streamSegments(String filename, int segmentSize, SegmentConsumer consumer) throws IOException {
+        InputStream fileStream = Files.newInputStream(Paths.get(filename));
+        try (InputStream inputStream = isGzip(filename) ? new GZIPInputStream(fileStream, 64 * 1024) : fileStream) {
+            splitSegments(inputStream, segmentSize, consumer);
+        }
+    }
+
+    /**
+     * Receives the segments of a streamed file.
+     */
+    interface SegmentConsumer {
+        void accept(byte[] segment) throws IOException;
+    }
+
+    /**
+     * Lists the files named by a path: the file itself, the regular files of a directory, or the
+     * files matching a glob such as "feed/part-*.csv.gz" or "feed/**.gz".
+     *
+     * @return files in name order.
+     */
+    static List<Path> listFiles(String pattern) throws IOException {
+        Path path = Paths.get(pattern);
+        if (Files.isRegularFile(path))
+            return Collections.singletonList(path);
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> files = Files.list(path)) {
+                return files.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+        }
+        Path base = baseDirectory(pattern);
+        PathMatcher matcher = base.getFileSystem().getPathMatcher("glob:" + pattern);
+        if (!Files.isDirectory(base))
+            return Collections.emptyList();
+        try (Stream<Path> files = Files.walk(base)) {
+            return files.filter(Files::isRegularFile).filter(matcher::matches).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * @return the directory the files listed by {@link #listFiles} are relative to: the directory
+     *         itself, the parent of the file, or the part of the glob before its first special
+     *         character.
+     */
+    static Path baseDirectory(String pattern) {
+        Path path = Paths.get(pattern);
+        if (Files.isDirectory(path))
+            return path;
+        if (Files.isRegularFile(path))
+            return path.toAbsolutePath().getParent();
+        int special = pattern.length();
+        for (char c : "*?[{".toCharArray()) {
+            int index = pattern.indexOf(c);
+            if (index >= 0)
+                special = Math.min(special, index);
+        }
+        int separator = pattern.lastIndexOf(File.separatorChar, special);
+        if (separator < 0)
+            return Paths.get("");
+        return Paths.get(separator == 0 ? File.separator : pattern.substring(0, separator));
+    }
+
+    static boolean isGzip(String filename) {
+        return filename.endsWith(".gz");
+    }
+
+    private static List<byte[]> readPlainSegments(Path path, int numberOfSegment, ExecutorService executorService) throws IOException, ExecutionException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long segmentSize = Math.max(1, Math.min(MAX_SEGMENT_SIZE, (size + numberOfSegment - 1) / numberOfSegment));
+
+            // Move every cut to the next line boundary
+            List<Long> bounds = new ArrayList<>();
+            bounds.add(0L);
+            long position = 0;
+            while (position < size) {
+                long end = nextLineStart(channel, Math.min(size, position + segmentSize), size);
+                bounds.add(end);
+                position = end;
+            }
+
+            List<Future<byte[]>> futures = new ArrayList<>(bounds.size());
+            for (int i = 0; i < bounds.size() - 1; i++) {
+                long from = bounds.get(i);
+                long to = bounds.get(i + 1);
+                futures.add(executorService.submit(() -> read(channel, from, (int) (to - from))));
+            }
+            List<byte[]> segments = new ArrayList<>(futures.size());
+            for (Future<byte[]> future : futures) {
+                segments.add(future.get());
+            }
+            return segments;
+        }
+    }
+
+    private static long nextLineStart(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0)
+                break;
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n')
+                    return position + i + 1;
             }
-            return locations;
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            position += read;
+        }
+        return size;
+    }
+
+    private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+        byte[] content = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0)
+                throw new IOException("Unexpected end of file at " + (position + buffer.position()));
         }
+        return content;
     }
-    static List<String> readLines(String filename) throws URISyntaxException, IOException {
-        InputStream resourceAsStream = Files.newInputStream(Paths.get(filename));
-        if (filename.endsWith(".gz")) {
-            return decode(org.apache.commons.io.IOUtils.toByteArray(resourceAsStream));
+
+    /**
+     * Cuts a stream in segments of at most segmentSize bytes, on line boundaries.
+     * A line longer than segmentSize is kept whole in its own segment.
+     */
+    static List<byte[]> splitSegments(InputStream inputStream, int segmentSize) throws IOException {
+        List<byte[]> segments = new ArrayList<>();
+        splitSegments(inputStream, segmentSize, segments::add);
+        return segments;
+    }
+
+    private static void splitSegments(InputStream inputStream, int segmentSize, SegmentConsumer consumer) throws IOException {
+        byte[] buffer = new byte[segmentSize];
+        int length = 0;
+        while (true) {
+            if (length == buffer.length)
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            int read = inputStream.read(buffer, length, buffer.length - length);
+            if (read < 0)
+                break;
+            length += read;
+            if (length < segmentSize)
+                continue;
+
+            int cut = length;
+            while (cut > 0 && buffer[cut - 1] != '\n')
+                cut--;
+            if (cut == 0)
+                continue;
+            consumer.accept(Arrays.copyOf(buffer, cut));
+            byte[] next = new byte[Math.max(segmentSize, length - cut)];
+            System.arraycopy(buffer, cut, next, 0, length - cut);
+            length -= cut;
+            buffer = next;
         }
-        return org.apache.commons.io.IOUtils.readLines(resourceAsStream, "UTF-8");
+        if (length > 0)
+            consumer.accept(Arrays.copyOf(buffer, length));
     }
 }
@@ -0,0 +1,33 @@
+package com.databerries;
+
+/**
+ * The timezones of the rows of a {@link Dataset} having one, in row order.
+ *
+ * A location is identified by its position among these rows, the point index of the
+ * nearest neighbour indexes built from {@link Dataset#locationCoordinates()}. Once the index is
+ * built, this and the index are all the resolution needs: the dataset can be released.
+ */
+final class Locations {
+    private final int[] timezoneIds;
+    private final byte[][] timezoneBytes;
+
+    Locations(int[] timezoneIds, byte[][] timezoneBytes) {
+        this.timezoneIds = timezoneIds;
+        this.timezoneBytes = timezoneBytes;
+    }
+
+    int size() {
+        return timezoneIds.length;
+    }
+
+    /**
+     * @return id of the timezone of a location in the dictionary of its dataset.
+     */
+    int timezoneId(int location) {
+        return timezoneIds[location];
+    }
+
+    byte[] timezoneBytes(int location) {
+        return timezoneBytes[timezoneIds[location]];
+    }
+}
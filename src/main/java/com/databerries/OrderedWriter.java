@@ -0,0 +1,234 @@
+package com.databerries;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes chunks produced by concurrent workers in sequence order, on its own thread.
+ *
+ * Chunks are written to reusable buffers taken from a bounded pool: {@link #acquire} blocks while
+ * every buffer is either being filled or waiting to be written, which bounds the memory used by
+ * the output whatever the speed of the disk. Buffers must be acquired in sequence order, the
+ * buffer of the next chunk to write is then always held by a worker and the writer cannot stall.
+ */
+class OrderedWriter implements Closeable {
+    /**
+     * Opens the file receiving a partition.
+     */
+    interface Target {
+        OutputStream open(int partition) throws IOException;
+    }
+
+    /**
+     * Notified on the writer thread, after each chunk is written and once the output is closed.
+     */
+    interface Listener {
+        void written(long sequence, int partition) throws IOException;
+
+        void closed() throws IOException;
+    }
+
+    private static final Listener NO_LISTENER = new Listener() {
+        @Override
+        public void written(long sequence, int partition) { }
+
+        @Override
+        public void closed() { }
+    };
+
+    private static final Buffer END = new Buffer(false);
+
+    private final Target target;
+    private final Listener listener;
+    private final boolean compress;
+    private final long firstSequence;
+    private final BlockingQueue<Buffer> pool;
+    private final BlockingQueue<Buffer> pending = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private volatile Throwable failure = null;
+    private volatile long total = -1;
+    private long acquired;
+    private long bytesWritten = 0;
+
+    /**
+     * @param target
+     *            files receiving the partitions.
+     * @param compress
+     *            compress the chunks to BGZF.
+     * @param numberOfBuffer
+     *            number of chunks in flight.
+     */
+    OrderedWriter(Target target, boolean compress, int numberOfBuffer) {
+        this(target, NO_LISTENER, compress, numberOfBuffer, 0);
+    }
+
+    /**
+     * @param listener
+     *            notified of the progress of the output.
+     * @param firstSequence
+     *            sequence of the first chunk, to resume an output whose previous chunks are
+     *            already written.
+     */
+    OrderedWriter(Target target, Listener listener, boolean compress, int numberOfBuffer, long firstSequence) {
+        this.target = target;
+        this.listener = listener;
+        this.compress = compress;
+        this.firstSequence = firstSequence;
+        this.acquired = firstSequence;
+        this.pool = new ArrayBlockingQueue<>(numberOfBuffer);
+        for (int i = 0; i < numberOfBuffer; i++) {
+            pool.add(new Buffer(compress));
+        }
+        this.thread = new Thread(this::run, "ordered-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Takes a buffer for the next chunk, blocks until one is free.
+     *
+     * @param partition
+     *            partition of the chunk, partitions must not decrease.
+     * @return an empty buffer.
+     */
+    Buffer acquire(int partition) throws IOException, InterruptedException {
+        Buffer buffer;
+        while ((buffer = pool.poll(100, TimeUnit.MILLISECONDS)) == null) {
+            checkFailure();
+        }
+        buffer.reset();
+        buffer.sequence = acquired++;
+        buffer.partition = partition;
+        return buffer;
+    }
+
+    /**
+     * Hands a filled buffer to the writer.
+     *
+     * @return size of the chunk, compressed if the writer compresses.
+     */
+    int submit(Buffer buffer) throws IOException {
+        buffer.stream().flush();
+        // The buffer belongs to the writer once added
+        int size = buffer.size();
+        pending.add(buffer);
+        return size;
+    }
+
+    /**
+     * Stops the writer, {@link #close} rethrows the failure.
+     */
+    void fail(Throwable t) {
+        if (failure == null)
+            failure = t;
+        pending.add(END);
+    }
+
+    /**
+     * Waits for every acquired buffer to be written.
+     */
+    @Override
+    public void close() throws IOException {
+        total = acquired;
+        pending.add(END);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        checkFailure();
+    }
+
+    long bytesWritten() {
+        return bytesWritten;
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null)
+            throw new IOException("Output failed", failure);
+    }
+
+    private void run() {
+        Map<Long, Buffer> waiting = new HashMap<>();
+        long next = firstSequence;
+        int partition = -1;
+        OutputStream outputStream = null;
+        Events.Write event = null;
+        try {
+            while (failure == null && (total < 0 || next < total)) {
+                Buffer buffer = pending.take();
+                if (buffer != END)
+                    waiting.put(buffer.sequence, buffer);
+                while ((buffer = waiting.remove(next)) != null) {
+                    if (buffer.partition != partition) {
+                        closePartition(outputStream, event);
+                        event = new Events.Write();
+                        event.begin();
+                        outputStream = target.open(buffer.partition);
+                        partition = buffer.partition;
+                        event.partition = partition;
+                    }
+                    buffer.writeTo(outputStream);
+                    bytesWritten += buffer.size();
+                    event.chunks++;
+                    event.bytes += buffer.size();
+                    pool.add(buffer);
+                    listener.written(next, partition);
+                    next++;
+                }
+            }
+            if (failure == null) {
+                // An empty output still gets its file
+                if (outputStream == null && firstSequence == 0) {
+                    event = new Events.Write();
+                    event.begin();
+                    outputStream = target.open(0);
+                }
+                closePartition(outputStream, event);
+                listener.closed();
+            }
+        } catch (Throwable t) {
+            if (failure == null)
+                failure = t;
+        }
+    }
+
+    private void closePartition(OutputStream outputStream, Events.Write event) throws IOException {
+        if (outputStream == null)
+            return;
+        if (compress)
+            BgzfOutputStream.writeEndOfFile(outputStream);
+        outputStream.close();
+        event.commit();
+    }
+
+    /**
+     * A reusable chunk, its content is compressed when the writer compresses.
+     */
+    static final class Buffer extends ByteArrayOutputStream {
+        private final OutputStream stream;
+        private long sequence;
+        private int partition;
+
+        private Buffer(boolean compress) {
+            super(1024 * 1024);
+            this.stream = compress ? new BgzfOutputStream(this) : this;
+        }
+
+        /**
+         * @return the stream receiving the chunk.
+         */
+        OutputStream stream() {
+            return stream;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.databerries;
+
+import com.databerries.tree.DualTreeJoin;
+import com.databerries.tree.NearestNeighbour;
+import com.databerries.tree.NearestNeighbourIndex;
+import com.databerries.tree.XYZPoint;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Gives a timezone to the rows without one, from the nearest location of a reference index.
+ *
+ * By default the search is exact. With an epsilon or a limit of visited nodes the search is
+ * approximate: the nearest location found is at most (1 + epsilon) times farther than the
+ * real one, or anything when the limit is hit. An approximate answer whose distance is within
+ * recheckKm of the threshold is searched again exactly, since that is where the approximation
+ * can change whether the row is resolved.
+ *
+ * With a {@link DualTreeJoin} instead of an index, the rows of a chunk are resolved together by
+ * a single join, which is exact.
+ */
+class Resolver {
+    private final Locations locations;
+    private final NearestNeighbourIndex index;
+    private final DualTreeJoin join;
+    private final int maxDistanceInKm;
+    private final double epsilon;
+    private final int maxVisitedNodes;
+    private final double recheckKm;
+
+    private final LongAdder searched = new LongAdder();
+    private final LongAdder approximated = new LongAdder();
+    private final LongAdder rechecked = new LongAdder();
+    private final LongAdder corrected = new LongAdder();
+
+    /**
+     * Exact resolver.
+     *
+     * @param locations
+     *            timezones of the points of the index.
+     * @param index
+     *            index of the locations having a timezone.
+     * @param maxDistanceInKm
+     *            threshold.
+     */
+    Resolver(Locations locations, NearestNeighbourIndex index, int maxDistanceInKm) {
+        this(locations, index, maxDistanceInKm, 0, Integer.MAX_VALUE, 0);
+    }
+
+    /**
+     * @param epsilon
+     *            allowed relative error.
+     * @param maxVisitedNodes
+     *            maximum number of nodes visited by a search.
+     * @param recheckKm
+     *            margin around the threshold where approximate answers are searched again.
+     */
+    Resolver(Locations locations, NearestNeighbourIndex index, int maxDistanceInKm, double epsilon, int maxVisitedNodes, double recheckKm) {
+        this(locations, index, null, maxDistanceInKm, epsilon, maxVisitedNodes, recheckKm);
+    }
+
+    /**
+     * Exact resolver joining the rows of a chunk at once.
+     *
+     * @param join
+     *            join over the locations having a timezone.
+     */
+    Resolver(Locations locations, DualTreeJoin join, int maxDistanceInKm) {
+        this(locations, null, join, maxDistanceInKm, 0, Integer.MAX_VALUE, 0);
+    }
+
+    private Resolver(Locations locations, NearestNeighbourIndex index, DualTreeJoin join, int maxDistanceInKm,
+                     double epsilon, int maxVisitedNodes, double recheckKm) {
+        this.locations = locations;
+        this.index = index;
+        this.join = join;
+        this.maxDistanceInKm = maxDistanceInKm;
+        this.epsilon = epsilon;
+        this.maxVisitedNodes = maxVisitedNodes;
+        this.recheckKm = recheckKm;
+    }
+
+    boolean isApproximate() {
+        return epsilon > 0 || maxVisitedNodes < Integer.MAX_VALUE;
+    }
+
+    /**
+     * Writes the rows [from, to) of a segment, a row without timezone gets the timezone of its
+     * nearest location if it is closer than maxDistanceInKm, otherwise it is left to null.
+     * Apart from the result reused by its searches, a call allocates nothing per row.
+     *
+     * @return number of rows searched.
+     */
+    int resolve(Dataset.Segment segment, int from, int to, OutputStream outputStream) throws IOException {
+        if (join != null)
+            return resolveJoined(segment, from, to, outputStream);
+        NearestNeighbour result = new NearestNeighbour();
+        int searches = 0;
+        for (int row = from; row < to; row++) {
+            byte[] timezone = null;
+            if (segment.timezoneId(row) == Dataset.UNDEFINED_TIMEZONE) {
+                double latitude = segment.latitude(row);
+                double longitude = segment.longitude(row);
+                double x = XYZPoint.toX(XYZPoint.EARTH_RADIUS, latitude, longitude);
+                double y = XYZPoint.toY(XYZPoint.EARTH_RADIUS, latitude, longitude);
+                double z = XYZPoint.toZ(XYZPoint.EARTH_RADIUS, latitude);
+                int nearest = row % Events.QUERY_SAMPLE_INTERVAL == 0 && Events.isQueryEnabled()
+                        ? sampledNearest(x, y, z, latitude, longitude, result)
+                        : nearest(x, y, z, result);
+                if (nearest >= 0) {
+                    timezone = locations.timezoneBytes(nearest);
+                }
+                searches++;
+            }
+            segment.writeLine(row, timezone, outputStream);
+        }
+        return searches;
+    }
+
+    private int resolveJoined(Dataset.Segment segment, int from, int to, OutputStream outputStream) throws IOException {
+        int[] rows = new int[to - from];
+        int searches = 0;
+        for (int row = from; row < to; row++) {
+            if (segment.timezoneId(row) == Dataset.UNDEFINED_TIMEZONE)
+                rows[searches++] = row;
+        }
+        double[] x = new double[searches];
+        double[] y = new double[searches];
+        double[] z = new double[searches];
+        for (int i = 0; i < searches; i++) {
+            double latitude = segment.latitude(rows[i]);
+            double longitude = segment.longitude(rows[i]);
+            x[i] = XYZPoint.toX(XYZPoint.EARTH_RADIUS, latitude, longitude);
+            y[i] = XYZPoint.toY(XYZPoint.EARTH_RADIUS, latitude, longitude);
+            z[i] = XYZPoint.toZ(XYZPoint.EARTH_RADIUS, latitude);
+        }
+        byte[][] timezones = new byte[to - from][];
+        join.join(x, y, z, searches, maxDistanceInKm, (queryIndex, referenceIndex, distance) ->
+                timezones[rows[queryIndex] - from] = locations.timezoneBytes(referenceIndex));
+        searched.add(searches);
+
+        for (int row = from; row < to; row++) {
+            segment.writeLine(row, timezones[row - from], outputStream);
+        }
+        return searches;
+    }
+
+    private int sampledNearest(double x, double y, double z, double latitude, double longitude, NearestNeighbour result) {
+        Events.Query event = new Events.Query();
+        event.begin();
+        int nearest = nearest(x, y, z, result);
+        event.latitude = latitude;
+        event.longitude = longitude;
+        event.nodesVisited = result.getVisitedNodes();
+        event.distance = result.getDistance();
+        event.exact = result.isExact();
+        event.resolved = nearest >= 0;
+        event.commit();
+        return nearest;
+    }
+
+    /**
+     * Searches without allocating, the result is left with the last search done.
+     *
+     * @return the nearest location closer than the threshold, -1 if there is none.
+     */
+    private int nearest(double x, double y, double z, NearestNeighbour result) {
+        searched.increment();
+        if (!isApproximate())
+            return exactNearest(x, y, z, result);
+
+        index.nearestNeighbour(x, y, z, epsilon, maxVisitedNodes, result);
+        if (result.getPoint() < 0)
+            return -1;
+        int nearest = result.getDistance() < maxDistanceInKm ? result.getPoint() : -1;
+        if (result.isExact())
+            return nearest;
+
+        approximated.increment();
+        if (Math.abs(result.getDistance() - maxDistanceInKm) > recheckKm)
+            return nearest;
+        rechecked.increment();
+        int exact = exactNearest(x, y, z, result);
+        if (exact != nearest && (exact < 0 || nearest < 0 || locations.timezoneId(exact) != locations.timezoneId(nearest)))
+            corrected.increment();
+        return exact;
+    }
+
+    private int exactNearest(double x, double y, double z, NearestNeighbour result) {
+        index.nearestNeighbour(x, y, z, 0, Integer.MAX_VALUE, result);
+        if (result.getPoint() >= 0 && result.getDistance() < maxDistanceInKm)
+            return result.getPoint();
+        return -1;
+    }
+
+    /**
+     * @return number of locations the rows are resolved from.
+     */
+    int locationCount() {
+        return index != null ? index.size() : join.size();
+    }
+
+    /**
+     * @return the index searched, null when joining.
+     */
+    NearestNeighbourIndex index() {
+        return index;
+    }
+
+    long searched() {
+        return searched.sum();
+    }
+
+    /**
+     * @return number of searches that were not exact.
+     */
+    long approximated() {
+        return approximated.sum();
+    }
+
+    /**
+     * @return number of approximate searches searched again because they were close to the threshold.
+     */
+    long rechecked() {
+        return rechecked.sum();
+    }
+
+    /**
+     * @return number of rechecks that changed the timezone written.
+     */
+    long corrected() {
+        return corrected.sum();
+    }
+}
@@ -0,0 +1,381 @@
+package com.databerries;
+
+import com.databerries.tree.XYZPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a job as several worker processes, each one owning a region of the sphere.
+ *
+ * A row belongs to the shard of the region containing it. The index of a shard holds the
+ * locations of its region plus a halo: every location that may be closer than the threshold to
+ * a point of the region. The nearest location closer than the threshold is then always in the
+ * index of the shard of the row, and the results are the same as with a single process.
+ *
+ * Each shard is written as a csv file, its locations and its rows without timezone in input
+ * order, and resolved by a {@link FindNearestTmz} process. The outputs are merged back in input
+ * order. The input is streamed one segment at a time, both to split it and to merge, so the
+ * coordinator never holds the whole file.
+ */
+class ShardCoordinator {
+    private static final Logger LOG = LoggerFactory.getLogger(ShardCoordinator.class);
+
+    /**
+     * Regions of the sphere, computed on the xyz coordinates.
+     */
+    enum Partitioning {
+        /**
+         * Faces of the cube: the dominant axis and its sign.
+         */
+        FACES(6) {
+            @Override
+            int shardOf(XYZPoint p) {
+                double ax = Math.abs(p.getX());
+                double ay = Math.abs(p.getY());
+                double az = Math.abs(p.getZ());
+                if (ax >= ay && ax >= az)
+                    return p.getX() >= 0 ? 0 : 1;
+                if (ay >= az)
+                    return p.getY() >= 0 ? 2 : 3;
+                return p.getZ() >= 0 ? 4 : 5;
+            }
+
+            @Override
+            boolean inHalo(XYZPoint p, int shard, double margin) {
+                double[] c = {p.getX(), p.getY(), p.getZ()};
+                int axis = shard / 2;
+                double a = shard % 2 == 0 ? c[axis] : -c[axis];
+                double b = Math.abs(c[(axis + 1) % 3]);
+                double d = Math.abs(c[(axis + 2) % 3]);
+                // A point q of the face has a >= |b| and a >= |d|, so a point within margin of q
+                // has a - |b| >= -2 margin and a - |d| >= -2 margin
+                return a - b >= -2 * margin && a - d >= -2 * margin;
+            }
+        },
+        /**
+         * Octants: the signs of x, y and z.
+         */
+        OCTANTS(8) {
+            @Override
+            int shardOf(XYZPoint p) {
+                return (p.getX() < 0 ? 1 : 0) | (p.getY() < 0 ? 2 : 0) | (p.getZ() < 0 ? 4 : 0);
+            }
+
+            @Override
+            boolean inHalo(XYZPoint p, int shard, double margin) {
+                return inHalo(p.getX(), (shard & 1) != 0, margin)
+                        && inHalo(p.getY(), (shard & 2) != 0, margin)
+                        && inHalo(p.getZ(), (shard & 4) != 0, margin);
+            }
+
+            private boolean inHalo(double coordinate, boolean negative, double margin) {
+                return negative ? coordinate <= margin : coordinate >= -margin;
+            }
+        };
+
+        final int numberOfShard;
+
+        Partitioning(int numberOfShard) {
+            this.numberOfShard = numberOfShard;
+        }
+
+        abstract int shardOf(XYZPoint p);
+
+        /**
+         * @return true if p may be closer than margin to a point of the shard, always true for
+         *         the points of the shard.
+         */
+        abstract boolean inHalo(XYZPoint p, int shard, double margin);
+    }
+
+    /**
+     * JVM options of the coordinator given to the workers, by prefix. Others, such as a debugger
+     * agent, a flight recording or a heap size meant for the whole job, are not.
+     */
+    private static final String[] WORKER_JVM_OPTIONS = {"-Xss", "-ea", "-enableassertions", "-Dfile.encoding=",
+            "-XX:+UseSerialGC", "-XX:+UseParallelGC", "-XX:+UseG1GC"};
+
+    private final String inputFile;
+    private final Partitioning partitioning;
+    private final int maxDistanceInKm;
+    private final Path workDirectory;
+    private final List<String> workerArguments;
+    private final long[] locationCounts;
+    private final long[] rowCounts;
+
+    /**
+     * @param inputFile
+     *            path to a csv, it can be gzip.
+     * @param workerArguments
+     *            options given to each worker after the input file and the threshold.
+     */
+    ShardCoordinator(String inputFile, Partitioning partitioning, int maxDistanceInKm, Path workDirectory, List<String> workerArguments) {
+        this.inputFile = inputFile;
+        this.partitioning = partitioning;
+        this.maxDistanceInKm = maxDistanceInKm;
+        this.workDirectory = workDirectory;
+        this.workerArguments = workerArguments;
+        this.locationCounts = new long[partitioning.numberOfShard];
+        this.rowCounts = new long[partitioning.numberOfShard];
+    }
+
+    /**
+     * Splits, resolves and merges.
+     *
+     * @param output
+     *            receives the rows in input order.
+     * @param numberOfProcess
+     *            maximum number of worker processes running at the same time.
+     */
+    void run(OutputStream output, int numberOfProcess) throws IOException, InterruptedException, ExecutionException {
+        for (int shard = 0; shard < partitioning.numberOfShard; shard++) {
+            Files.createDirectories(shardDirectory(shard));
+        }
+        split();
+
+        ExecutorService processes = Executors.newFixedThreadPool(numberOfProcess);
+        CompletionService<Integer> completion = new ExecutorCompletionService<>(processes);
+        Map<Future<Integer>, Integer> shards = new HashMap<>();
+        boolean succeeded = false;
+        try {
+            for (int shard = 0; shard < partitioning.numberOfShard; shard++) {
+                int current = shard;
+                // A shard without row to resolve has nothing to merge back
+                if (rowCounts[shard] > 0)
+                    shards.put(completion.submit(() -> runWorker(current)), shard);
+            }
+            // In completion order, so that a failure is seen while other workers still run
+            for (int i = 0; i < shards.size(); i++) {
+                Future<Integer> future = completion.take();
+                int exitCode = future.get();
+                int shard = shards.get(future);
+                if (exitCode != 0)
+                    throw new IOException("Worker of shard " + shard + " failed with exit code " + exitCode + ", see " + logFile(shard));
+            }
+            succeeded = true;
+        } finally {
+            if (succeeded) {
+                processes.shutdown();
+            } else {
+                // Interrupts the running workers, which destroy their process, and drops the others
+                processes.shutdownNow();
+                processes.awaitTermination(1, TimeUnit.MINUTES);
+            }
+        }
+        merge(output);
+    }
+
+    /**
+     * Writes the csv of each shard: the locations of its index and its rows without timezone.
+     */
+    private void split() throws IOException {
+        int numberOfShard = partitioning.numberOfShard;
+        OutputStream[] outputs = new OutputStream[numberOfShard];
+        try {
+            for (int shard = 0; shard < numberOfShard; shard++) {
+                outputs[shard] = new BufferedOutputStream(Files.newOutputStream(inputFile(shard)), 1024 * 1024);
+            }
+            IOUtils.streamSegments(inputFile, IOUtils.MAX_SEGMENT_SIZE, source -> {
+                Dataset.Segment segment = Dataset.parseSegment(source);
+                for (int row = 0; row < segment.size(); row++) {
+                    XYZPoint point = XYZPoint.createFromLatitudeLongitude(segment.latitude(row), segment.longitude(row));
+                    if (segment.timezoneId(row) != Dataset.UNDEFINED_TIMEZONE) {
+                        for (int shard = 0; shard < numberOfShard; shard++) {
+                            if (partitioning.inHalo(point, shard, maxDistanceInKm)) {
+                                segment.writeLine(row, null, outputs[shard]);
+                                locationCounts[shard]++;
+                            }
+                        }
+                    } else {
+                        int shard = partitioning.shardOf(point);
+                        segment.writeLine(row, null, outputs[shard]);
+                        rowCounts[shard]++;
+                    }
+                }
+            });
+        } finally {
+            for (OutputStream outputStream : outputs) {
+                if (outputStream != null)
+                    outputStream.close();
+            }
+        }
+        for (int shard = 0; shard < numberOfShard; shard++) {
+            LOG.info("Shard {} : {} locations, {} rows to resolve.", shard, locationCounts[shard], rowCounts[shard]);
+        }
+    }
+
+    private int runWorker(int shard) throws IOException, InterruptedException {
+        LOG.info("Starting worker of shard {}.", shard);
+        Process process = new ProcessBuilder(workerCommand(shard))
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.to(logFile(shard).toFile()))
+                .start();
+        int exitCode;
+        try {
+            exitCode = process.waitFor();
+        } catch (InterruptedException e) {
+            process.destroyForcibly().waitFor();
+            LOG.info("Worker of shard {} stopped.", shard);
+            throw e;
+        }
+        LOG.info("Worker of shard {} done with exit code {}.", shard, exitCode);
+        return exitCode;
+    }
+
+    /**
+     * @return command line of the {@link FindNearestTmz} process resolving a shard, run with the
+     *         java and the class path of the coordinator.
+     */
+    List<String> workerCommand(int shard) {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(workerJvmOptions());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(FindNearestTmz.class.getName());
+        command.add(inputFile(shard).toString());
+        command.add(Integer.toString(maxDistanceInKm));
+        command.addAll(workerArguments);
+        return command;
+    }
+
+    private static List<String> workerJvmOptions() {
+        List<String> options = new ArrayList<>();
+        for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            for (String allowed : WORKER_JVM_OPTIONS) {
+                if (option.startsWith(allowed)) {
+                    options.add(option);
+                    break;
+                }
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Writes the rows in input order, a row without timezone is taken from the output of its
+     * shard. The shards are read along: a location is skipped in the output of every shard it
+     * was written to.
+     */
+    private void merge(OutputStream output) throws IOException {
+        int numberOfShard = partitioning.numberOfShard;
+        LineReader[] inputs = new LineReader[numberOfShard];
+        try {
+            for (int shard = 0; shard < numberOfShard; shard++) {
+                // A shard without row to resolve has no output
+                if (rowCounts[shard] > 0)
+                    inputs[shard] = new LineReader(Files.newInputStream(outputFile(shard)), outputFile(shard));
+            }
+            IOUtils.streamSegments(inputFile, IOUtils.MAX_SEGMENT_SIZE, source -> {
+                Dataset.Segment segment = Dataset.parseSegment(source);
+                for (int row = 0; row < segment.size(); row++) {
+                    XYZPoint point = XYZPoint.createFromLatitudeLongitude(segment.latitude(row), segment.longitude(row));
+                    if (segment.timezoneId(row) != Dataset.UNDEFINED_TIMEZONE) {
+                        for (int shard = 0; shard < numberOfShard; shard++) {
+                            if (inputs[shard] != null && partitioning.inHalo(point, shard, maxDistanceInKm))
+                                inputs[shard].copyLine(null);
+                        }
+                        segment.writeLine(row, null, output);
+                    } else {
+                        int shard = partitioning.shardOf(point);
+                        inputs[shard].copyLine(output);
+                    }
+                }
+            });
+        } finally {
+            for (LineReader input : inputs) {
+                if (input != null)
+                    input.close();
+            }
+        }
+    }
+
+    /**
+     * Reads a worker output line by line, through a buffer that whole lines are copied from.
+     */
+    private static final class LineReader {
+        private final InputStream input;
+        private final Path path;
+        private final byte[] buffer = new byte[1024 * 1024];
+        private int position = 0;
+        private int limit = 0;
+
+        private LineReader(InputStream input, Path path) {
+            this.input = input;
+            this.path = path;
+        }
+
+        /**
+         * Copies the next line, with its end of line.
+         *
+         * @param output
+         *            destination, or null to skip the line.
+         */
+        private void copyLine(OutputStream output) throws IOException {
+            while (true) {
+                if (position == limit && !fill())
+                    throw new IOException("Output " + path + " is truncated");
+                int end = position;
+                while (end < limit && buffer[end] != '\n')
+                    end++;
+                boolean complete = end < limit;
+                if (complete)
+                    end++;
+                if (output != null)
+                    output.write(buffer, position, end - position);
+                position = end;
+                if (complete)
+                    return;
+            }
+        }
+
+        private boolean fill() throws IOException {
+            int read = input.read(buffer);
+            if (read <= 0)
+                return false;
+            position = 0;
+            limit = read;
+            return true;
+        }
+
+        private void close() throws IOException {
+            input.close();
+        }
+    }
+
+    private Path shardDirectory(int shard) {
+        return workDirectory.resolve("shard_" + shard);
+    }
+
+    private Path inputFile(int shard) {
+        return shardDirectory(shard).resolve("input.csv");
+    }
+
+    private Path outputFile(int shard) {
+        return shardDirectory(shard).resolve("output");
+    }
+
+    private Path logFile(int shard) {
+        return shardDirectory(shard).resolve("worker.log");
+    }
+}
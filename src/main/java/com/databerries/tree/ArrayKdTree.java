@@ -0,0 +1,332 @@
+package com.databerries.tree;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Spliterator;
+
+/**
+ * A k-d tree stored in the coordinate arrays of its points, built once.
+ *
+ * The arrays are reordered so that the tree is implicit: the node of a range is the median of the
+ * range on the axis of its depth, the points before it are lower than or equal to it on that
+ * axis and the points after it greater than or equal. A point costs its three coordinates and
+ * its index in the arrays given to the constructor, 28 bytes, and no object is created per point.
+ *
+ * Searches are the ones of a {@link KdTree}: each point is a visited node, a side is pruned by
+ * its distance to the node on the axis and ties are broken the same way, see
+ * {@link NearestNeighbour}.
+ */
+public class ArrayKdTree implements NearestNeighbourIndex {
+
+    private final double[] x;
+    private final double[] y;
+    private final double[] z;
+    private final int[] index;
+
+    /**
+     * Builds a balanced tree, in O(n log(n)).
+     *
+     * @param x
+     *            x of the points, the arrays are kept by the tree and reordered.
+     */
+    public ArrayKdTree(double[] x, double[] y, double[] z) {
+        this(x, y, z, identity(x.length));
+        build(0, x.length, 0);
+    }
+
+    private ArrayKdTree(double[] x, double[] y, double[] z, int[] index) {
+        if (y.length != x.length || z.length != x.length || index.length != x.length)
+            throw new IllegalArgumentException("Coordinate arrays of different sizes");
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.index = index;
+    }
+
+    private static int[] identity(int size) {
+        int[] index = new int[size];
+        for (int i = 0; i < size; i++) {
+            index[i] = i;
+        }
+        return index;
+    }
+
+    @Override
+    public int size() {
+        return x.length;
+    }
+
+    /**
+     * Writes the points in tree order, {@link #read} gives back the same tree without sorting.
+     */
+    public void write(DataOutput output) throws IOException {
+        output.writeInt(x.length);
+        for (int i = 0; i < x.length; i++) {
+            output.writeDouble(x[i]);
+            output.writeDouble(y[i]);
+            output.writeDouble(z[i]);
+            output.writeInt(index[i]);
+        }
+    }
+
+    public static ArrayKdTree read(DataInput input) throws IOException {
+        int size = input.readInt();
+        double[] x = new double[size];
+        double[] y = new double[size];
+        double[] z = new double[size];
+        int[] index = new int[size];
+        for (int i = 0; i < size; i++) {
+            x[i] = input.readDouble();
+            y[i] = input.readDouble();
+            z[i] = input.readDouble();
+            index[i] = input.readInt();
+        }
+        return new ArrayKdTree(x, y, z, index);
+    }
+
+    /**
+     * @return shape of the tree, computed by walking every node.
+     */
+    public TreeStatistics statistics() {
+        int size = x.length;
+        // Pre-order walk of the ranges, a parent always comes before its children
+        int[] parents = new int[size];
+        double[] px = new double[size];
+        double[] py = new double[size];
+        double[] pz = new double[size];
+        int[] from = new int[64];
+        int[] to = new int[64];
+        int[] parent = new int[64];
+        int top = 0;
+        int count = 0;
+        if (size > 0) {
+            from[0] = 0;
+            to[0] = size;
+            parent[0] = -1;
+            top = 1;
+        }
+        while (top > 0) {
+            top--;
+            int start = from[top];
+            int end = to[top];
+            int median = (start + end) >>> 1;
+            int node = count++;
+            parents[node] = parent[top];
+            px[node] = x[median];
+            py[node] = y[median];
+            pz[node] = z[median];
+            // Pushed in reverse, the lesser range comes first
+            if (median + 1 < end) {
+                from[top] = median + 1;
+                to[top] = end;
+                parent[top++] = node;
+            }
+            if (start < median) {
+                from[top] = start;
+                to[top] = median;
+                parent[top++] = node;
+            }
+        }
+        return TreeStatistics.of(size, parents, px, py, pz, 0);
+    }
+
+    /**
+     * Traverses the points in tree order, {@code StreamSupport.intStream(tree.spliterator(), true)}
+     * processes the index on all cores. The tree is stored in the arrays, so splitting them splits
+     * on subtrees and each part knows its exact size.
+     *
+     * @return Spliterator
+     *                  over the indexes of the points in the arrays the tree was built from.
+     */
+    public Spliterator.OfInt spliterator() {
+        return Arrays.spliterator(index);
+    }
+
+    @Override
+    public NearestNeighbour nearestNeighbour(double x, double y, double z, double epsilon, int maxVisitedNodes, NearestNeighbour result) {
+        double factor = (1 + epsilon) * (1 + epsilon);
+        result.reset(maxVisitedNodes);
+        searchNearest(0, this.x.length, 0, x, y, z, factor, result);
+        return result;
+    }
+
+    private void searchNearest(int from, int to, int depth, double x, double y, double z, double factor, NearestNeighbour result) {
+        if (from >= to)
+            return;
+        if (result.visitedNodes >= result.maxVisitedNodes) {
+            result.exact = false;
+            return;
+        }
+        result.visitedNodes++;
+
+        int node = (from + to) >>> 1;
+        double dx = this.x[node] - x;
+        double dy = this.y[node] - y;
+        double dz = this.z[node] - z;
+        result.offer(index[node], this.x[node], this.y[node], this.z[node], dx * dx + dy * dy + dz * dz);
+
+        int axis = depth % 3;
+        double delta = axis == KdTree.X_AXIS ? -dx : (axis == KdTree.Y_AXIS ? -dy : -dz);
+        // Points equal to the node on the axis can be on both sides, the lesser one is searched first
+        boolean lesserFirst = delta <= 0;
+        if (lesserFirst)
+            searchNearest(from, node, depth + 1, x, y, z, factor, result);
+        else
+            searchNearest(node + 1, to, depth + 1, x, y, z, factor, result);
+        int farFrom = lesserFirst ? node + 1 : from;
+        int farTo = lesserFirst ? to : node;
+        if (farFrom < farTo) {
+            double deltaSq = delta * delta;
+            // Not pruned at an equal distance, the far side may hold a point that comes first
+            if (deltaSq * factor <= result.distanceSq)
+                searchNearest(farFrom, farTo, depth + 1, x, y, z, factor, result);
+            else if (deltaSq < result.distanceSq)
+                // Only pruned because of epsilon
+                result.exact = false;
+        }
+    }
+
+    @Override
+    public boolean radiusSearch(double x, double y, double z, double radius, PointVisitor visitor) {
+        double inf = Double.POSITIVE_INFINITY;
+        return searchRadius(0, this.x.length, 0, x, y, z, radius * radius, visitor, -inf, inf, -inf, inf, -inf, inf);
+    }
+
+    /**
+     * The bounds are the ones given by the splits of the ancestors of the range.
+     */
+    private boolean searchRadius(int from, int to, int depth, double x, double y, double z, double radiusSq, PointVisitor visitor,
+                                 double minX, double maxX, double minY, double maxY, double minZ, double maxZ) {
+        if (from >= to)
+            return true;
+        int node = (from + to) >>> 1;
+        double dx = this.x[node] - x;
+        double dy = this.y[node] - y;
+        double dz = this.z[node] - z;
+        double distanceSq = dx * dx + dy * dy + dz * dz;
+        if (distanceSq <= radiusSq && !visitor.visit(index[node], distanceSq))
+            return false;
+
+        // Points equal to the node on the axis can be on both sides, so the node bounds both
+        int axis = depth % 3;
+        double lMaxX = axis == KdTree.X_AXIS ? this.x[node] : maxX;
+        double lMaxY = axis == KdTree.Y_AXIS ? this.y[node] : maxY;
+        double lMaxZ = axis == KdTree.Z_AXIS ? this.z[node] : maxZ;
+        if (boxDistanceSq(x, y, z, minX, lMaxX, minY, lMaxY, minZ, lMaxZ) <= radiusSq
+                && !searchRadius(from, node, depth + 1, x, y, z, radiusSq, visitor, minX, lMaxX, minY, lMaxY, minZ, lMaxZ))
+            return false;
+        double gMinX = axis == KdTree.X_AXIS ? this.x[node] : minX;
+        double gMinY = axis == KdTree.Y_AXIS ? this.y[node] : minY;
+        double gMinZ = axis == KdTree.Z_AXIS ? this.z[node] : minZ;
+        return boxDistanceSq(x, y, z, gMinX, maxX, gMinY, maxY, gMinZ, maxZ) > radiusSq
+                || searchRadius(node + 1, to, depth + 1, x, y, z, radiusSq, visitor, gMinX, maxX, gMinY, maxY, gMinZ, maxZ);
+    }
+
+    /**
+     * Squared distance from a point to a box, 0 if the point is inside.
+     */
+    private static double boxDistanceSq(double x, double y, double z, double minX, double maxX, double minY, double maxY, double minZ, double maxZ) {
+        double dx = x < minX ? minX - x : (x > maxX ? x - maxX : 0);
+        double dy = y < minY ? minY - y : (y > maxY ? y - maxY : 0);
+        double dz = z < minZ ? minZ - z : (z > maxZ ? z - maxZ : 0);
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    @Override
+    public boolean boxSearch(double minX, double maxX, double minY, double maxY, double minZ, double maxZ, PointVisitor visitor) {
+        return searchBox(0, x.length, 0, minX, maxX, minY, maxY, minZ, maxZ, null, visitor);
+    }
+
+    @Override
+    public boolean latitudeLongitudeBoxSearch(LatitudeLongitudeBox box, PointVisitor visitor) {
+        return searchBox(0, x.length, 0, box.minX, box.maxX, box.minY, box.maxY, box.minZ, box.maxZ, box, visitor);
+    }
+
+    /**
+     * @param filter
+     *            latitude / longitude box the points of the xyz box must also be in, null for none.
+     */
+    private boolean searchBox(int from, int to, int depth, double minX, double maxX, double minY, double maxY, double minZ, double maxZ,
+                              LatitudeLongitudeBox filter, PointVisitor visitor) {
+        while (from < to) {
+            int node = (from + to) >>> 1;
+            double px = x[node];
+            double py = y[node];
+            double pz = z[node];
+            if (px >= minX && px <= maxX && py >= minY && py <= maxY && pz >= minZ && pz <= maxZ
+                    && (filter == null || filter.contains(px, py, pz))) {
+                double dx = px - (minX + maxX) / 2;
+                double dy = py - (minY + maxY) / 2;
+                double dz = pz - (minZ + maxZ) / 2;
+                if (!visitor.visit(index[node], dx * dx + dy * dy + dz * dz))
+                    return false;
+            }
+
+            int axis = depth % 3;
+            double split = axis == KdTree.X_AXIS ? px : (axis == KdTree.Y_AXIS ? py : pz);
+            double min = axis == KdTree.X_AXIS ? minX : (axis == KdTree.Y_AXIS ? minY : minZ);
+            double max = axis == KdTree.X_AXIS ? maxX : (axis == KdTree.Y_AXIS ? maxY : maxZ);
+            if (min <= split && !searchBox(from, node, depth + 1, minX, maxX, minY, maxY, minZ, maxZ, filter, visitor))
+                return false;
+            if (max < split)
+                return true;
+            from = node + 1;
+            depth++;
+        }
+        return true;
+    }
+
+    private void build(int from, int to, int depth) {
+        while (to - from > 1) {
+            int median = (from + to) >>> 1;
+            select(axis(depth % 3), from, to, median);
+            build(from, median, depth + 1);
+            from = median + 1;
+            depth++;
+        }
+    }
+
+    private double[] axis(int axis) {
+        return axis == KdTree.X_AXIS ? x : (axis == KdTree.Y_AXIS ? y : z);
+    }
+
+    /**
+     * Moves the k-th smallest coordinate of [from, to) on an axis to index k, smaller or equal
+     * ones before it and greater or equal ones after it.
+     */
+    private void select(double[] axis, int from, int to, int k) {
+        while (to - from > 1) {
+            double a = axis[from];
+            double b = axis[(from + to) >>> 1];
+            double c = axis[to - 1];
+            double pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+            // Three way partition, so that many equal coordinates do not degrade it
+            int less = from;
+            int i = from;
+            int greater = to;
+            while (i < greater) {
+                if (axis[i] < pivot)
+                    swap(less++, i++);
+                else if (axis[i] > pivot)
+                    swap(i, --greater);
+                else
+                    i++;
+            }
+            if (k < less)
+                to = less;
+            else if (k >= greater)
+                from = greater;
+            else
+                return;
+        }
+    }
+
+    private void swap(int i, int j) {
+        double t = x[i]; x[i] = x[j]; x[j] = t;
+        t = y[i]; y[i] = y[j]; y[j] = t;
+        t = z[i]; z[i] = z[j]; z[j] = t;
+        int s = index[i]; index[i] = index[j]; index[j] = s;
+    }
+}
@@ -0,0 +1,304 @@
+package com.databerries.tree;
+
+import java.util.Arrays;
+
+/**
+ * All nearest neighbours join: finds, for every query point, its nearest reference point closer
+ * than a threshold.
+ *
+ * Instead of one search per query, the queries are indexed in a tree of their own and both trees
+ * are traversed together. Each query node keeps a bound, the largest distance to the nearest
+ * reference found so far among its queries, starting at the threshold. A pair of nodes whose
+ * bounding boxes are farther apart than the bound of the query node is pruned at once, for all
+ * its queries and references: queries far from any reference, such as a whole ocean area, are
+ * dropped at the top of the trees. The bound of a query node is the maximum of the bounds of its
+ * children, so it tightens as its leaves find nearer references.
+ *
+ * The reference tree is built once and only read by the joins, which may run concurrently.
+ * A pair of nodes is only pruned when strictly farther than the bound, the rule of
+ * {@link ArrayKdTree} and {@link LazyKdTree}: among references at the same distance, the one kept by
+ * {@link NearestNeighbour} is matched, as with them.
+ */
+public class DualTreeJoin {
+
+    /**
+     * Maximum number of points of a leaf.
+     */
+    static final int LEAF_SIZE = 16;
+
+    private final Tree referenceTree;
+
+    /**
+     * Builds the tree of the references.
+     *
+     * @param x
+     *            x of the reference points, the arrays are kept by the join and reordered. A
+     *            match gives the index of its reference in these arrays.
+     */
+    public DualTreeJoin(double[] x, double[] y, double[] z) {
+        if (y.length != x.length || z.length != x.length)
+            throw new IllegalArgumentException("Coordinate arrays of different sizes");
+        this.referenceTree = new Tree(x, y, z);
+    }
+
+    public int size() {
+        return referenceTree.x.length;
+    }
+
+    /**
+     * Joins queries with their nearest reference.
+     *
+     * @param x
+     *            x of the points to find the nearest reference of, the arrays are copied.
+     * @param size
+     *            number of queries, the first ones of the arrays.
+     * @param threshold
+     *            maximum euclidean distance, exclusive.
+     * @param visitor
+     *            receives the queries having a reference closer than threshold, in query order.
+     * @return number of queries matched.
+     */
+    public int join(double[] x, double[] y, double[] z, int size, double threshold, JoinVisitor visitor) {
+        if (size == 0 || size() == 0)
+            return 0;
+        Join join = new Join(new Tree(Arrays.copyOf(x, size), Arrays.copyOf(y, size), Arrays.copyOf(z, size)), threshold);
+        join.traverse(0, 0);
+
+        int matches = 0;
+        for (int i = 0; i < size; i++) {
+            if (join.nearest[i] < 0)
+                continue;
+            double distance = Math.sqrt(join.best[i]);
+            if (distance < threshold) {
+                visitor.match(i, referenceTree.index[join.nearest[i]], distance);
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * State of one join: the position in the reference tree of the nearest reference of each
+     * query and the bound of each query node.
+     */
+    private final class Join {
+        private final Tree queryTree;
+        private final double[] best;
+        private final int[] nearest;
+        private final double[] bound;
+
+        private Join(Tree queryTree, double threshold) {
+            this.queryTree = queryTree;
+            int size = queryTree.x.length;
+            // Slightly above the threshold, the exact comparison is done on the distance at the end
+            double initial = threshold * threshold * (1 + 1e-9);
+            this.best = new double[size];
+            Arrays.fill(best, initial);
+            this.nearest = new int[size];
+            Arrays.fill(nearest, -1);
+            this.bound = new double[queryTree.nodeCount];
+            Arrays.fill(bound, initial);
+        }
+
+        private void traverse(int queryNode, int referenceNode) {
+            // Ties are kept, they may hold a reference that comes first
+            if (boxDistanceSq(queryTree, queryNode, referenceTree, referenceNode) > bound[queryNode])
+                return;
+
+            boolean queryLeaf = queryTree.isLeaf(queryNode);
+            boolean referenceLeaf = referenceTree.isLeaf(referenceNode);
+            if (queryLeaf && referenceLeaf) {
+                baseCase(queryNode, referenceNode);
+            } else if (!queryLeaf && (referenceLeaf || queryTree.size(queryNode) >= referenceTree.size(referenceNode))) {
+                int lesser = queryTree.lesser[queryNode];
+                int greater = queryTree.greater[queryNode];
+                traverse(lesser, referenceNode);
+                traverse(greater, referenceNode);
+                bound[queryNode] = Math.min(bound[queryNode], Math.max(bound[lesser], bound[greater]));
+            } else {
+                int near = referenceTree.lesser[referenceNode];
+                int far = referenceTree.greater[referenceNode];
+                if (boxDistanceSq(queryTree, queryNode, referenceTree, far) < boxDistanceSq(queryTree, queryNode, referenceTree, near)) {
+                    near = far;
+                    far = referenceTree.lesser[referenceNode];
+                }
+                traverse(queryNode, near);
+                traverse(queryNode, far);
+            }
+        }
+
+        private void baseCase(int queryNode, int referenceNode) {
+            double nodeBound = 0;
+            for (int q = queryTree.from[queryNode]; q < queryTree.to[queryNode]; q++) {
+                int query = queryTree.index[q];
+                double queryBest = best[query];
+                int queryNearest = nearest[query];
+                for (int r = referenceTree.from[referenceNode]; r < referenceTree.to[referenceNode]; r++) {
+                    double dx = referenceTree.x[r] - queryTree.x[q];
+                    double dy = referenceTree.y[r] - queryTree.y[q];
+                    double dz = referenceTree.z[r] - queryTree.z[q];
+                    double distanceSq = dx * dx + dy * dy + dz * dz;
+                    if (distanceSq < queryBest || (distanceSq == queryBest && queryNearest >= 0 && comesFirst(r, queryNearest))) {
+                        queryBest = distanceSq;
+                        queryNearest = r;
+                    }
+                }
+                best[query] = queryBest;
+                nearest[query] = queryNearest;
+                nodeBound = Math.max(nodeBound, queryBest);
+            }
+            bound[queryNode] = nodeBound;
+        }
+
+        /**
+         * Same order as {@link NearestNeighbour}, by coordinates then by index.
+         */
+        private boolean comesFirst(int r, int other) {
+            Tree tree = referenceTree;
+            int compare = XYZPoint.compare(tree.x[r], tree.y[r], tree.z[r], tree.x[other], tree.y[other], tree.z[other]);
+            return compare < 0 || (compare == 0 && tree.index[r] < tree.index[other]);
+        }
+    }
+
+    /**
+     * Squared distance between the bounding boxes of two nodes, 0 if they intersect.
+     */
+    private static double boxDistanceSq(Tree a, int nodeA, Tree b, int nodeB) {
+        double dx = gap(a.minX[nodeA], a.maxX[nodeA], b.minX[nodeB], b.maxX[nodeB]);
+        double dy = gap(a.minY[nodeA], a.maxY[nodeA], b.minY[nodeB], b.maxY[nodeB]);
+        double dz = gap(a.minZ[nodeA], a.maxZ[nodeA], b.minZ[nodeB], b.maxZ[nodeB]);
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private static double gap(double minA, double maxA, double minB, double maxB) {
+        return minA > maxB ? minA - maxB : (minB > maxA ? minB - maxA : 0);
+    }
+
+    /**
+     * A kd-tree over arrays: the coordinates are stored in tree order, a node is a range of them
+     * with its bounding box, its children split it at its median on its widest axis.
+     */
+    private static final class Tree {
+        private final double[] x;
+        private final double[] y;
+        private final double[] z;
+        private final int[] index;
+
+        private int nodeCount = 0;
+        private int[] from;
+        private int[] to;
+        private int[] lesser;
+        private int[] greater;
+        private double[] minX, maxX, minY, maxY, minZ, maxZ;
+
+        /**
+         * Builds the tree in the given arrays, which are reordered.
+         */
+        private Tree(double[] x, double[] y, double[] z) {
+            int size = x.length;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.index = new int[size];
+            for (int i = 0; i < size; i++) {
+                index[i] = i;
+            }
+            // Leaves hold at least LEAF_SIZE / 2 points
+            allocateNodes(4 * size / LEAF_SIZE + 1);
+            build(0, size);
+        }
+
+        private boolean isLeaf(int node) {
+            return lesser[node] < 0;
+        }
+
+        private int size(int node) {
+            return to[node] - from[node];
+        }
+
+        private int build(int start, int end) {
+            int node = nodeCount++;
+            if (node == from.length)
+                allocateNodes(2 * from.length);
+            from[node] = start;
+            to[node] = end;
+            minX[node] = minY[node] = minZ[node] = Double.POSITIVE_INFINITY;
+            maxX[node] = maxY[node] = maxZ[node] = Double.NEGATIVE_INFINITY;
+            for (int i = start; i < end; i++) {
+                minX[node] = Math.min(minX[node], x[i]);
+                maxX[node] = Math.max(maxX[node], x[i]);
+                minY[node] = Math.min(minY[node], y[i]);
+                maxY[node] = Math.max(maxY[node], y[i]);
+                minZ[node] = Math.min(minZ[node], z[i]);
+                maxZ[node] = Math.max(maxZ[node], z[i]);
+            }
+            lesser[node] = -1;
+            greater[node] = -1;
+            if (end - start <= LEAF_SIZE)
+                return node;
+
+            double spreadX = maxX[node] - minX[node];
+            double spreadY = maxY[node] - minY[node];
+            double spreadZ = maxZ[node] - minZ[node];
+            double[] axis = spreadX >= spreadY && spreadX >= spreadZ ? x : (spreadY >= spreadZ ? y : z);
+            int median = (start + end) >>> 1;
+            select(axis, start, end, median);
+            int lesserNode = build(start, median);
+            int greaterNode = build(median, end);
+            lesser[node] = lesserNode;
+            greater[node] = greaterNode;
+            return node;
+        }
+
+        /**
+         * Moves the k-th smallest coordinate of [start, end) on an axis to index k, smaller or
+         * equal ones before it and greater or equal ones after it.
+         */
+        private void select(double[] axis, int start, int end, int k) {
+            while (end - start > 1) {
+                double a = axis[start];
+                double b = axis[(start + end) >>> 1];
+                double c = axis[end - 1];
+                double pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+                // Three way partition, so that many equal coordinates do not degrade it
+                int less = start;
+                int i = start;
+                int greater = end;
+                while (i < greater) {
+                    if (axis[i] < pivot)
+                        swap(less++, i++);
+                    else if (axis[i] > pivot)
+                        swap(i, --greater);
+                    else
+                        i++;
+                }
+                if (k < less)
+                    end = less;
+                else if (k >= greater)
+                    start = greater;
+                else
+                    return;
+            }
+        }
+
+        private void swap(int i, int j) {
+            double t = x[i]; x[i] = x[j]; x[j] = t;
+            t = y[i]; y[i] = y[j]; y[j] = t;
+            t = z[i]; z[i] = z[j]; z[j] = t;
+            int s = index[i]; index[i] = index[j]; index[j] = s;
+        }
+
+        private void allocateNodes(int capacity) {
+            from = from == null ? new int[capacity] : Arrays.copyOf(from, capacity);
+            to = to == null ? new int[capacity] : Arrays.copyOf(to, capacity);
+            lesser = lesser == null ? new int[capacity] : Arrays.copyOf(lesser, capacity);
+            greater = greater == null ? new int[capacity] : Arrays.copyOf(greater, capacity);
+            minX = minX == null ? new double[capacity] : Arrays.copyOf(minX, capacity);
+            maxX = maxX == null ? new double[capacity] : Arrays.copyOf(maxX, capacity);
+            minY = minY == null ? new double[capacity] : Arrays.copyOf(minY, capacity);
+            maxY = maxY == null ? new double[capacity] : Arrays.copyOf(maxY, capacity);
+            minZ = minZ == null ? new double[capacity] : Arrays.copyOf(minZ, capacity);
+            maxZ = maxZ == null ? new double[capacity] : Arrays.copyOf(maxZ, capacity);
+        }
+    }
+}
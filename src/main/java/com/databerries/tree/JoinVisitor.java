@@ -0,0 +1,19 @@
+package com.databerries.tree;
+
+/**
+ * Receives the pairs found by a {@link DualTreeJoin}, one at a time, so that no result
+ * collection has to be built.
+ */
+@FunctionalInterface
+public interface JoinVisitor {
+
+    /**
+     * @param queryIndex
+     *            index of the query in the queries of the join.
+     * @param referenceIndex
+     *            index of its nearest reference in the references of the join.
+     * @param distance
+     *            euclidean distance between them.
+     */
+    void match(int queryIndex, int referenceIndex, double distance);
+}
@@ -31,8 +31,20 @@ class KdNode<T extends XYZPoint> implements Comparable<KdNode>, Serializable {
         this.depth = depth;
     }
 
+    /**
+     * Compares on the axis of a depth, then on the next axes, so that only equal points are equal
+     * and points on a line or a plane are still split in halves.
+     */
     static int compareTo(int depth, int k, XYZPoint o1, XYZPoint o2) {
-        int axis = depth % k;
+        for (int i = 0; i < k; i++) {
+            int compare = compareOnAxis((depth + i) % k, o1, o2);
+            if (compare != 0)
+                return compare;
+        }
+        return 0;
+    }
+
+    private static int compareOnAxis(int axis, XYZPoint o1, XYZPoint o2) {
         if (axis == X_AXIS)
             return X_COMPARATOR.compare(o1, o2);
         if (axis == Y_AXIS)
@@ -6,11 +6,14 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Deque;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
 import java.util.TreeSet;
+import java.util.function.Consumer;
 
 /**
  * A k-d tree (short for k-dimensional tree) is a space-partitioning data
@@ -26,6 +29,11 @@ import java.util.TreeSet;
 public class KdTree<T extends XYZPoint> implements Iterable<T>, Serializable {
 
     private int k = 3;
+    private int size = 0;
+    private double maxImbalance = 0;
+    private long rebuilds = 0;
+    // Largest size since the whole tree was last built, to rebuild it once removes shrank it
+    private int maxSize = 0;
     KdNode root = null;
 
     static final Comparator<XYZPoint> X_COMPARATOR = (o1, o2) -> {
@@ -71,6 +79,8 @@ public class KdTree<T extends XYZPoint> implements Iterable<T>, Serializable {
     public KdTree(List<? extends XYZPoint> list) {
         super();
         root = createNode(list, k, 0);
+        size = list == null ? 0 : list.size();
+        maxSize = size;
     }
 
     /**
@@ -85,6 +95,8 @@ public class KdTree<T extends XYZPoint> implements Iterable<T>, Serializable {
     public KdTree(List<? extends XYZPoint> list, int k) {
         super();
         root = createNode(list, k, 0);
+        size = list == null ? 0 : list.size();
+        maxSize = size;
     }
 
     /**
@@ -102,47 +114,56 @@ public class KdTree<T extends XYZPoint> implements Iterable<T>, Serializable {
         if (list == null || list.size() == 0)
             return null;
 
-        int axis = depth % k;
-        if (axis == X_AXIS)
-            list.sort(X_COMPARATOR);
-        else if (axis == Y_AXIS)
-            list.sort(Y_COMPARATOR);
-        else
-            list.sort(Z_COMPARATOR);
-
-        KdNode node = null;
-        List<XYZPoint> less = new ArrayList<>(list.size());
-        List<XYZPoint> more = new ArrayList<>(list.size());
-        if (list.size() > 0) {
-            int medianIndex = list.size() / 2;
-            node = new KdNode(list.get(medianIndex), k, depth);
-            // Process list to see where each non-median point lies
-            for (int i = 0; i < list.size(); i++) {
-                if (i == medianIndex)
-                    continue;
-                XYZPoint p = list.get(i);
-                // Cannot assume points before the median are less since they could be equal
-                if (KdNode.compareTo(depth, k, p, node.id) <= 0) {
-                    less.add(p);
-                } else {
-                    more.add(p);
-                }
-            }
+        list.sort((o1, o2) -> KdNode.compareTo(depth, k, o1, o2));
 
-            if ((medianIndex-1 >= 0) && less.size() > 0) {
-                node.lesser = createNode(less, k, depth + 1);
-                node.lesser.parent = node;
-            }
-
-            if ((medianIndex <= list.size()-1) && more.size() > 0) {
-                node.greater = createNode(more, k, depth + 1);
-                node.greater.parent = node;
-            }
+        // Equal points can be on both sides of the median, so that both sides have the same size
+        int medianIndex = list.size() / 2;
+        KdNode<XYZPoint> node = new KdNode<>(list.get(medianIndex), k, depth);
+        if (medianIndex > 0) {
+            node.lesser = createNode(list.subList(0, medianIndex), k, depth + 1);
+            node.lesser.parent = node;
+        }
+        if (medianIndex + 1 < list.size()) {
+            node.greater = createNode(list.subList(medianIndex + 1, list.size()), k, depth + 1);
+            node.greater.parent = node;
         }
-
         return node;
     }
 
+    /**
+     * Enables the rebuild of unbalanced subtrees, as in a scapegoat tree. When an add puts a point
+     * deeper than log(size) / -log(maxImbalance), the lowest subtree on its path whose larger child
+     * holds more than maxImbalance of its nodes is rebuilt balanced. When removes bring the size
+     * under maxImbalance times the largest size since the whole tree was built, the whole tree is
+     * rebuilt. Points equal on the axis of a split are ordered by the next axes, and equal points
+     * are spread over both sides, so a rebuilt subtree is always balanced: the depth stays at most
+     * log(size) / -log(maxImbalance) + 1, at an amortized cost of O(log(size)) per add or remove.
+     *
+     * @param maxImbalance
+     *            between 0.5 (exclusive) and 1 (exclusive), 0 disables the rebuilds (the default).
+     */
+    public void setMaxImbalance(double maxImbalance) {
+        if (maxImbalance != 0 && (maxImbalance <= 0.5 || maxImbalance >= 1))
+            throw new IllegalArgumentException("maxImbalance must be in (0.5, 1) or 0, got " + maxImbalance);
+        this.maxImbalance = maxImbalance;
+    }
+
+    /**
+     * Rebuilds the whole tree balanced.
+     */
+    public void rebuild() {
+        if (root != null)
+            rebuild(root);
+        maxSize = size;
+    }
+
+    /**
+     * @return shape of the tree, computed by walking every node.
+     */
+    public TreeStatistics statistics() {
+        return TreeStatistics.of(root, rebuilds);
+    }
+
     /**
      * Adds value to the tree. Tree can contain multiple equal values.
      *
@@ -154,17 +175,23 @@ public class KdTree<T extends XYZPoint> implements Iterable<T>, Serializable {
         if (value == null)
             return false;
 
+        size++;
+        maxSize = Math.max(maxSize, size);
         if (root == null) {
-            root = new KdNode(value);
+            root = new KdNode<>(value);
             return true;
         }
 
-        KdNode node = root;
+        KdNode<?> node = root;
+        KdNode<T> newNode;
         while (true) {
-            if (KdNode.compareTo(node.depth, node.k, value, node.id) <= 0) {
+            int compare = KdNode.compareTo(node.depth, node.k, value, node.id);
+            // Equal points go to one side or the other by the bits of the size, as in a digital
+            // tree, so that many equal points still make a balanced subtree
+            if (compare < 0 || (compare == 0 && ((size >>> (node.depth & 31)) & 1) == 0)) {
                 // Lesser
                 if (node.lesser == null) {
-                    KdNode newNode = new KdNode(value, k, node.depth + 1);
+                    newNode = new KdNode<>(value, k, node.depth + 1);
                     newNode.parent = node;
                     node.lesser = newNode;
                     break;
@@ -173,7 +200,7 @@ public class KdTree<T extends XYZPoint> implements Iterable<T>, Serializable {
             } else {
                 // Greater
                 if (node.greater == null) {
-                    KdNode newNode = new KdNode(value, k, node.depth + 1);
+                    newNode = new KdNode<>(value, k, node.depth + 1);
                     newNode.parent = node;
                     node.greater = newNode;
                     break;
@@ -182,9 +209,64 @@ public class KdTree<T extends XYZPoint> implements Iterable<T>, Serializable {
             }
         }
 
+        if (maxImbalance > 0 && newNode.depth - root.depth > Math.log(size) / -Math.log(maxImbalance))
+            rebuildScapegoat(newNode);
         return true;
     }
 
+    /**
+     * Rebuilds the lowest unbalanced subtree on the path of a node too deep. Such a subtree
+     * exists, otherwise the node would not be that deep, and finding it only walks the subtree.
+     */
+    private void rebuildScapegoat(KdNode<?> deepNode) {
+        KdNode<?> child = deepNode;
+        int childSize = 1;
+        for (KdNode<?> node = deepNode.parent; node != null; node = node.parent) {
+            int nodeSize = childSize + 1 + subtreeSize(node.lesser == child ? node.greater : node.lesser);
+            if (childSize > maxImbalance * nodeSize) {
+                rebuild(node);
+                return;
+            }
+            child = node;
+            childSize = nodeSize;
+        }
+    }
+
+    /**
+     * Replaces a subtree by a balanced one holding the same points.
+     */
+    private void rebuild(KdNode<?> node) {
+        List<XYZPoint> points = getTree(node);
+        points.add(node.id);
+        KdNode<?> parent = node.parent;
+        KdNode<?> rebuilt = createNode(points, node.k, node.depth);
+        rebuilt.parent = parent;
+        if (parent == null)
+            root = rebuilt;
+        else if (parent.lesser == node)
+            parent.lesser = rebuilt;
+        else
+            parent.greater = rebuilt;
+        rebuilds++;
+    }
+
+    private static int subtreeSize(KdNode<?> root) {
+        if (root == null)
+            return 0;
+        int size = 0;
+        Deque<KdNode<?>> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            KdNode<?> node = stack.pop();
+            size++;
+            if (node.lesser != null)
+                stack.push(node.lesser);
+            if (node.greater != null)
+                stack.push(node.greater);
+        }
+        return size;
+    }
+
     /**
      * Does the tree contain the value.
      *
@@ -250,7 +332,7 @@ public class KdTree<T extends XYZPoint> implements Iterable<T>, Serializable {
 
         KdNode parent = node.parent;
         if (parent != null) {
-            if (parent.lesser != null && node.equals(parent.lesser)) {
+            if (parent.lesser == node) {
                 List<XYZPoint> nodes = getTree(node);
                 if (nodes.size() > 0) {
                     parent.lesser = createNode(nodes, node.k, node.depth);
@@ -280,9 +362,19 @@ public class KdTree<T extends XYZPoint> implements Iterable<T>, Serializable {
                 root = null;
         }
 
+        size--;
+        if (maxImbalance > 0 && size < maxImbalance * maxSize)
+            rebuild();
         return true;
     }
 
+    /**
+     * @return number of points in the tree.
+     */
+    public int size() {
+        return size;
+    }
+
     /**
      * Gets the (sub) tree rooted at root.
      *
@@ -295,15 +387,20 @@ public class KdTree<T extends XYZPoint> implements Iterable<T>, Serializable {
         if (root == null)
             return list;
 
-        if (root.lesser != null) {
-            list.add(root.lesser.id);
-            list.addAll(getTree(root.lesser));
-        }
-        if (root.greater != null) {
-            list.add(root.greater.id);
-            list.addAll(getTree(root.greater));
+        // Without recursion, an unbalanced subtree can be as deep as it is large
+        Deque<KdNode<?>> stack = new ArrayDeque<>();
+        if (root.greater != null)
+            stack.push(root.greater);
+        if (root.lesser != null)
+            stack.push(root.lesser);
+        while (!stack.isEmpty()) {
+            KdNode<?> node = stack.pop();
+            list.add(node.id);
+            if (node.greater != null)
+                stack.push(node.greater);
+            if (node.lesser != null)
+                stack.push(node.lesser);
         }
-
         return list;
     }
 
@@ -343,7 +440,8 @@ public class KdTree<T extends XYZPoint> implements Iterable<T>, Serializable {
 
         if (leaf != null) {
             // Used to not re-examine nodes
-            Set<KdNode> examined = new HashSet<>();
+            // By identity, equal points can be at the same depth
+            Set<KdNode> examined = Collections.newSetFromMap(new IdentityHashMap<>());
 
             // Go up the tree, looking for better solutions
             node = leaf;
@@ -462,24 +560,6 @@ public class KdTree<T extends XYZPoint> implements Iterable<T>, Serializable {
         }
     }
 
-    /** 
-     * Adds, in a specified queue, a given node and its related nodes (lesser, greater).
-     * 
-     * @param node 
-     *              Node to check. May be null.
-     * 
-     * @param results 
-     *              Queue containing all found entries. Must not be null.
-     */
-    @SuppressWarnings("unchecked")
-    private static <T extends XYZPoint> void search(final KdNode node, final Deque<T> results) {
-        if (node != null) {
-            results.add((T) node.id);
-            search(node.greater, results);
-            search(node.lesser, results);
-        }
-    }
-
     @Override
     public String toString() {
         return TreePrinter.getString(this);
@@ -505,27 +585,182 @@ public class KdTree<T extends XYZPoint> implements Iterable<T>, Serializable {
         }
     }
 
-    /** 
-     * Searches all entries from the first to the last entry.
-     * 
-     * @return Iterator 
-     *                  allowing to iterate through a collection containing all found entries.
+    /**
+     * Iterates lazily over all entries, each node before its greater then its lesser subtree.
+     * The tree must not be modified during the iteration.
+     *
+     * @return Iterator
+     *                  allowing to iterate through all entries.
      */
     public Iterator<T> iterator() {
-        final Deque<T> results = new ArrayDeque<>();
-        search(root, results);
-        return results.iterator();
+        return new KdIterator<>(root);
     }
 
-    /** 
-     * Searches all entries from the last to the first entry.
-     * 
-     * @return Iterator 
-     *                  allowing to iterate through a collection containing all found entries.
+    /**
+     * Iterates lazily over all entries, in the reverse order of {@link #iterator()}.
+     * The tree must not be modified during the iteration.
+     *
+     * @return Iterator
+     *                  allowing to iterate through all entries.
      */
     public Iterator<T> reverse_iterator() {
-        final Deque<T> results = new ArrayDeque<>();
-        search(root, results);
-        return results.descendingIterator();
+        return new KdReverseIterator<>(root);
+    }
+
+    /**
+     * Splits on subtrees, so that {@code StreamSupport.stream(tree.spliterator(), true)} processes
+     * the tree on all cores. The tree must not be modified during the traversal.
+     *
+     * @return Spliterator
+     *                  over all entries, in no particular order.
+     */
+    @Override
+    public Spliterator<T> spliterator() {
+        return new KdSpliterator<>(root, size);
+    }
+
+    private static final class KdIterator<T extends XYZPoint> implements Iterator<T> {
+        private final Deque<KdNode<?>> stack = new ArrayDeque<>();
+
+        private KdIterator(KdNode<?> root) {
+            if (root != null)
+                stack.push(root);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !stack.isEmpty();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (stack.isEmpty())
+                throw new NoSuchElementException();
+            KdNode<?> node = stack.pop();
+            if (node.lesser != null)
+                stack.push(node.lesser);
+            if (node.greater != null)
+                stack.push(node.greater);
+            return (T) node.id;
+        }
+    }
+
+    private static final class KdReverseIterator<T extends XYZPoint> implements Iterator<T> {
+        private final Deque<KdNode<?>> stack = new ArrayDeque<>();
+        // For each node of the stack, whether its subtrees have already been pushed
+        private final Deque<Boolean> expanded = new ArrayDeque<>();
+
+        private KdReverseIterator(KdNode<?> root) {
+            if (root != null) {
+                stack.push(root);
+                expanded.push(Boolean.FALSE);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !stack.isEmpty();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (stack.isEmpty())
+                throw new NoSuchElementException();
+            while (!expanded.peek()) {
+                // The node comes after its greater subtree which comes after its lesser subtree
+                KdNode<?> node = stack.peek();
+                expanded.pop();
+                expanded.push(Boolean.TRUE);
+                if (node.greater != null) {
+                    stack.push(node.greater);
+                    expanded.push(Boolean.FALSE);
+                }
+                if (node.lesser != null) {
+                    stack.push(node.lesser);
+                    expanded.push(Boolean.FALSE);
+                }
+            }
+            expanded.pop();
+            return (T) stack.pop().id;
+        }
+    }
+
+    private static final class KdSpliterator<T extends XYZPoint> implements Spliterator<T> {
+        // Give up splitting a degenerated (list shaped) subtree after this many nodes
+        private static final int MAX_EXPANSION = 64;
+
+        private final Deque<KdNode<?>> stack = new ArrayDeque<>();
+        // Nodes taken from the stack to split their subtrees, not yet returned
+        private final Deque<KdNode<?>> detached = new ArrayDeque<>();
+        private long estimatedSize;
+
+        private KdSpliterator(KdNode<?> root, long estimatedSize) {
+            if (root != null)
+                stack.push(root);
+            this.estimatedSize = estimatedSize;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean tryAdvance(Consumer<? super T> action) {
+            KdNode<?> node = detached.poll();
+            if (node == null) {
+                node = stack.poll();
+                if (node == null)
+                    return false;
+                if (node.lesser != null)
+                    stack.push(node.lesser);
+                if (node.greater != null)
+                    stack.push(node.greater);
+            }
+            action.accept((T) node.id);
+            return true;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void forEachRemaining(Consumer<? super T> action) {
+            KdNode<?> node;
+            while ((node = detached.poll()) != null)
+                action.accept((T) node.id);
+            while ((node = stack.poll()) != null) {
+                if (node.lesser != null)
+                    stack.push(node.lesser);
+                if (node.greater != null)
+                    stack.push(node.greater);
+                action.accept((T) node.id);
+            }
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            int expansion = 0;
+            while (stack.size() == 1 && expansion++ < MAX_EXPANSION) {
+                KdNode<?> node = stack.pop();
+                detached.add(node);
+                if (node.lesser != null)
+                    stack.push(node.lesser);
+                if (node.greater != null)
+                    stack.push(node.greater);
+            }
+            if (stack.size() < 2)
+                return null;
+            // The subtree at the bottom of the stack is the biggest one
+            KdNode<?> subtree = stack.removeLast();
+            estimatedSize = estimatedSize / 2;
+            return new KdSpliterator<>(subtree, estimatedSize);
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimatedSize;
+        }
+
+        @Override
+        public int characteristics() {
+            return NONNULL;
+        }
     }
-}
\ No newline at end of file
+}
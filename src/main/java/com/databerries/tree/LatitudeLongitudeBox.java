@@ -0,0 +1,95 @@
+package com.databerries.tree;
+
+/**
+ * A latitude / longitude box on the sphere of radius {@link XYZPoint#EARTH_RADIUS}, queried with
+ * {@link NearestNeighbourIndex#latitudeLongitudeBoxSearch}. The box crosses the antimeridian if
+ * minLongitude is greater than maxLongitude.
+ *
+ * The enclosing xyz box prunes the index and each point inside it is then checked against the
+ * latitudes and longitudes. A box is immutable, it can be created once and shared by queries.
+ */
+public final class LatitudeLongitudeBox {
+    // Degrees, so that a point on a bound computed from degrees is inside
+    private static final double TOLERANCE = 1e-9;
+
+    private final double minLatitude;
+    private final double maxLatitude;
+    private final double minLongitude;
+    private final double maxLongitude;
+    final double minX, maxX, minY, maxY, minZ, maxZ;
+
+    /**
+     * @param minLatitude
+     *            in degrees, inclusive.
+     * @param minLongitude
+     *            in degrees, inclusive, in [-180, 180].
+     */
+    public LatitudeLongitudeBox(double minLatitude, double maxLatitude, double minLongitude, double maxLongitude) {
+        if (minLatitude > maxLatitude)
+            throw new IllegalArgumentException("minLatitude " + minLatitude + " is greater than maxLatitude " + maxLatitude);
+        this.minLatitude = minLatitude;
+        this.maxLatitude = maxLatitude;
+        this.minLongitude = minLongitude;
+        this.maxLongitude = maxLongitude;
+
+        boolean crossesAntimeridian = minLongitude > maxLongitude;
+        double[] bounds = enclosingBox(minLatitude, maxLatitude, minLongitude, crossesAntimeridian ? 180 : maxLongitude);
+        if (crossesAntimeridian) {
+            double[] west = enclosingBox(minLatitude, maxLatitude, -180, maxLongitude);
+            for (int i = 0; i < bounds.length; i += 2) {
+                bounds[i] = Math.min(bounds[i], west[i]);
+                bounds[i + 1] = Math.max(bounds[i + 1], west[i + 1]);
+            }
+        }
+        minX = bounds[0];
+        maxX = bounds[1];
+        minY = bounds[2];
+        maxY = bounds[3];
+        minZ = bounds[4];
+        maxZ = bounds[5];
+    }
+
+    /**
+     * @return minX, maxX, minY, maxY, minZ and maxZ of the points of a box not crossing the
+     *         antimeridian, widened by a relative 1e-9.
+     */
+    private static double[] enclosingBox(double minLatitude, double maxLatitude, double minLongitude, double maxLongitude) {
+        double minLat = Math.toRadians(minLatitude);
+        double maxLat = Math.toRadians(maxLatitude);
+        double minLon = Math.toRadians(minLongitude);
+        double maxLon = Math.toRadians(maxLongitude);
+
+        // Bounds of cos(lat), cos(lon) and sin(lon) over the box
+        double minCosLat = Math.min(Math.cos(minLat), Math.cos(maxLat));
+        double maxCosLat = minLat <= 0 && maxLat >= 0 ? 1 : Math.max(Math.cos(minLat), Math.cos(maxLat));
+        double minCosLon = minLon <= -Math.PI || maxLon >= Math.PI ? -1 : Math.min(Math.cos(minLon), Math.cos(maxLon));
+        double maxCosLon = minLon <= 0 && maxLon >= 0 ? 1 : Math.max(Math.cos(minLon), Math.cos(maxLon));
+        double minSinLon = minLon <= -Math.PI / 2 && maxLon >= -Math.PI / 2 ? -1 : Math.min(Math.sin(minLon), Math.sin(maxLon));
+        double maxSinLon = minLon <= Math.PI / 2 && maxLon >= Math.PI / 2 ? 1 : Math.max(Math.sin(minLon), Math.sin(maxLon));
+
+        double r = XYZPoint.EARTH_RADIUS;
+        double slack = r * 1e-9;
+        return new double[] {
+                r * Math.min(minCosLat * minCosLon, maxCosLat * minCosLon) - slack,
+                r * Math.max(minCosLat * maxCosLon, maxCosLat * maxCosLon) + slack,
+                r * Math.min(minCosLat * minSinLon, maxCosLat * minSinLon) - slack,
+                r * Math.max(minCosLat * maxSinLon, maxCosLat * maxSinLon) + slack,
+                r * Math.sin(minLat) - slack,
+                r * Math.sin(maxLat) + slack
+        };
+    }
+
+    /**
+     * @return true if a point of the sphere is inside the box.
+     */
+    boolean contains(double x, double y, double z) {
+        double latitude = Math.toDegrees(Math.atan2(z, Math.sqrt(x * x + y * y)));
+        if (latitude < minLatitude - TOLERANCE || latitude > maxLatitude + TOLERANCE)
+            return false;
+        double longitude = Math.toDegrees(Math.atan2(y, x));
+        boolean afterMin = longitude >= minLongitude - TOLERANCE;
+        boolean beforeMax = longitude <= maxLongitude + TOLERANCE;
+        // A box crossing the antimeridian holds the longitudes after its min or before its max
+        return minLongitude <= maxLongitude ? afterMin && beforeMax : afterMin || beforeMax;
+    }
+}
@@ -0,0 +1,340 @@
+package com.databerries.tree;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A k-d tree partitioned on demand, so that building it costs one pass over the points and the
+ * first queries only pay for the regions they visit.
+ *
+ * A node is a range of the coordinate arrays with its bounding box. It is split around its median the
+ * first time a query descends into it: the range is partitioned in place, in linear time, and the
+ * two halves become child nodes with their own bounding box. Ranges of at most
+ * {@link #LEAF_SIZE} points are never split and are scanned. A region no query reaches is never
+ * partitioned, once every region is reached the tree costs the same as an {@link ArrayKdTree}.
+ *
+ * Concurrent queries are safe: a node is split under its own lock and published once complete,
+ * and the ranges of the children are disjoint, so a range is only rearranged by the thread
+ * splitting it while no other thread reads it.
+ */
+public class LazyKdTree implements NearestNeighbourIndex {
+
+    /**
+     * Maximum number of points of a range that is scanned instead of split.
+     */
+    static final int LEAF_SIZE = 16;
+
+    private final double[] x;
+    private final double[] y;
+    private final double[] z;
+    private final int[] index;
+    private final Node root;
+    private final LongAdder splitNodes = new LongAdder();
+    private final LongAdder partitionedPoints = new LongAdder();
+
+    /**
+     * Computes the bounding box of the points, nothing is partitioned yet.
+     *
+     * @param x
+     *            x of the points, the arrays are kept by the tree and reordered as it is split.
+     */
+    public LazyKdTree(double[] x, double[] y, double[] z) {
+        if (y.length != x.length || z.length != x.length)
+            throw new IllegalArgumentException("Coordinate arrays of different sizes");
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.index = new int[x.length];
+        for (int i = 0; i < index.length; i++) {
+            index[i] = i;
+        }
+        this.root = x.length == 0 ? null : createNode(0, x.length, 0);
+    }
+
+    @Override
+    public int size() {
+        return x.length;
+    }
+
+    /**
+     * @return number of nodes split so far.
+     */
+    public long splitNodes() {
+        return splitNodes.sum();
+    }
+
+    /**
+     * @return number of points partitioned so far, a point is counted once per level it has been
+     *         partitioned at.
+     */
+    public long partitionedPoints() {
+        return partitionedPoints.sum();
+    }
+
+    /**
+     * Same search as {@link ArrayKdTree#nearestNeighbour}, subtrees are pruned using their
+     * bounding box and each point scanned counts as a visited node. As in the ArrayKdTree, a
+     * subtree exactly as far as the best distance is still searched, so that ties are broken the
+     * same way.
+     */
+    @Override
+    public NearestNeighbour nearestNeighbour(double x, double y, double z, double epsilon, int maxVisitedNodes, NearestNeighbour result) {
+        double factor = (1 + epsilon) * (1 + epsilon);
+        result.reset(maxVisitedNodes);
+        if (root != null)
+            searchNearest(root, x, y, z, factor, result);
+        return result;
+    }
+
+    private void searchNearest(Node node, double x, double y, double z, double factor, NearestNeighbour result) {
+        double boxDistanceSq = node.distanceSq(x, y, z);
+        if (boxDistanceSq * factor > result.distanceSq) {
+            if (boxDistanceSq < result.distanceSq)
+                // Only pruned because of epsilon
+                result.exact = false;
+            return;
+        }
+
+        if (node.to - node.from <= LEAF_SIZE) {
+            for (int i = node.from; i < node.to; i++) {
+                if (!visit(i, x, y, z, result))
+                    return;
+            }
+            return;
+        }
+
+        Split split = node.split();
+        if (!visit(split.median, x, y, z, result))
+            return;
+        // Search the side of the median the value is on first
+        double valueCoordinate = split.axis == KdTree.X_AXIS ? x : (split.axis == KdTree.Y_AXIS ? y : z);
+        if (valueCoordinate <= axis(split.axis)[split.median]) {
+            searchNearest(split.lesser, x, y, z, factor, result);
+            searchNearest(split.greater, x, y, z, factor, result);
+        } else {
+            searchNearest(split.greater, x, y, z, factor, result);
+            searchNearest(split.lesser, x, y, z, factor, result);
+        }
+    }
+
+    /**
+     * @return false if the limit of visited nodes is reached.
+     */
+    private boolean visit(int candidate, double x, double y, double z, NearestNeighbour result) {
+        if (result.visitedNodes >= result.maxVisitedNodes) {
+            result.exact = false;
+            return false;
+        }
+        result.visitedNodes++;
+
+        double dx = this.x[candidate] - x;
+        double dy = this.y[candidate] - y;
+        double dz = this.z[candidate] - z;
+        result.offer(index[candidate], this.x[candidate], this.y[candidate], this.z[candidate], dx * dx + dy * dy + dz * dz);
+        return true;
+    }
+
+    /**
+     * Same query as {@link ArrayKdTree#radiusSearch}, subtrees are pruned using their bounding box.
+     */
+    @Override
+    public boolean radiusSearch(double x, double y, double z, double radius, PointVisitor visitor) {
+        return root == null || searchRadius(root, x, y, z, radius * radius, visitor);
+    }
+
+    private boolean searchRadius(Node node, double x, double y, double z, double radiusSq, PointVisitor visitor) {
+        if (node.distanceSq(x, y, z) > radiusSq)
+            return true;
+        if (node.to - node.from <= LEAF_SIZE)
+            return visitInRadius(node.from, node.to, x, y, z, radiusSq, visitor);
+        Split split = node.split();
+        return visitInRadius(split.median, split.median + 1, x, y, z, radiusSq, visitor)
+                && searchRadius(split.lesser, x, y, z, radiusSq, visitor)
+                && searchRadius(split.greater, x, y, z, radiusSq, visitor);
+    }
+
+    private boolean visitInRadius(int from, int to, double x, double y, double z, double radiusSq, PointVisitor visitor) {
+        for (int i = from; i < to; i++) {
+            double dx = this.x[i] - x;
+            double dy = this.y[i] - y;
+            double dz = this.z[i] - z;
+            double distanceSq = dx * dx + dy * dy + dz * dz;
+            if (distanceSq <= radiusSq && !visitor.visit(index[i], distanceSq))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Same query as {@link ArrayKdTree#boxSearch}, subtrees are pruned using their bounding box.
+     */
+    @Override
+    public boolean boxSearch(double minX, double maxX, double minY, double maxY, double minZ, double maxZ, PointVisitor visitor) {
+        return root == null || searchBox(root, minX, maxX, minY, maxY, minZ, maxZ, null, visitor);
+    }
+
+    @Override
+    public boolean latitudeLongitudeBoxSearch(LatitudeLongitudeBox box, PointVisitor visitor) {
+        return root == null || searchBox(root, box.minX, box.maxX, box.minY, box.maxY, box.minZ, box.maxZ, box, visitor);
+    }
+
+    /**
+     * @param filter
+     *            latitude / longitude box the points of the xyz box must also be in, null for none.
+     */
+    private boolean searchBox(Node node, double minX, double maxX, double minY, double maxY, double minZ, double maxZ,
+                              LatitudeLongitudeBox filter, PointVisitor visitor) {
+        if (node.maxX < minX || node.minX > maxX || node.maxY < minY || node.minY > maxY || node.maxZ < minZ || node.minZ > maxZ)
+            return true;
+        if (node.to - node.from <= LEAF_SIZE)
+            return visitInBox(node.from, node.to, minX, maxX, minY, maxY, minZ, maxZ, filter, visitor);
+        Split split = node.split();
+        return visitInBox(split.median, split.median + 1, minX, maxX, minY, maxY, minZ, maxZ, filter, visitor)
+                && searchBox(split.lesser, minX, maxX, minY, maxY, minZ, maxZ, filter, visitor)
+                && searchBox(split.greater, minX, maxX, minY, maxY, minZ, maxZ, filter, visitor);
+    }
+
+    private boolean visitInBox(int from, int to, double minX, double maxX, double minY, double maxY, double minZ, double maxZ,
+                               LatitudeLongitudeBox filter, PointVisitor visitor) {
+        for (int i = from; i < to; i++) {
+            double px = x[i];
+            double py = y[i];
+            double pz = z[i];
+            if (px >= minX && px <= maxX && py >= minY && py <= maxY && pz >= minZ && pz <= maxZ
+                    && (filter == null || filter.contains(px, py, pz))) {
+                double dx = px - (minX + maxX) / 2;
+                double dy = py - (minY + maxY) / 2;
+                double dz = pz - (minZ + maxZ) / 2;
+                if (!visitor.visit(index[i], dx * dx + dy * dy + dz * dz))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private Node createNode(int from, int to, int depth) {
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY, minZ = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY, maxZ = Double.NEGATIVE_INFINITY;
+        for (int i = from; i < to; i++) {
+            minX = Math.min(minX, x[i]);
+            maxX = Math.max(maxX, x[i]);
+            minY = Math.min(minY, y[i]);
+            maxY = Math.max(maxY, y[i]);
+            minZ = Math.min(minZ, z[i]);
+            maxZ = Math.max(maxZ, z[i]);
+        }
+        return new Node(from, to, depth, minX, maxX, minY, maxY, minZ, maxZ);
+    }
+
+    /**
+     * Moves the k-th smallest point of [from, to) on an axis to index k, smaller or equal points
+     * before it and greater or equal points after it.
+     */
+    private void select(int from, int to, int k, double[] axis) {
+        while (to - from > 1) {
+            double pivot = medianOfThree(axis[from], axis[(from + to) >>> 1], axis[to - 1]);
+            // Three way partition, so that many equal coordinates do not degrade it
+            int less = from;
+            int i = from;
+            int greater = to;
+            while (i < greater) {
+                double c = axis[i];
+                if (c < pivot)
+                    swap(less++, i++);
+                else if (c > pivot)
+                    swap(i, --greater);
+                else
+                    i++;
+            }
+            if (k < less)
+                to = less;
+            else if (k >= greater)
+                from = greater;
+            else
+                return;
+        }
+    }
+
+    private void swap(int i, int j) {
+        double t = x[i]; x[i] = x[j]; x[j] = t;
+        t = y[i]; y[i] = y[j]; y[j] = t;
+        t = z[i]; z[i] = z[j]; z[j] = t;
+        int s = index[i]; index[i] = index[j]; index[j] = s;
+    }
+
+    private static double medianOfThree(double a, double b, double c) {
+        return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+    }
+
+    private double[] axis(int axis) {
+        return axis == KdTree.X_AXIS ? x : (axis == KdTree.Y_AXIS ? y : z);
+    }
+
+    /**
+     * Children of a node, with the index of the median between them.
+     */
+    private final class Split {
+        private final int axis;
+        private final int median;
+        private final Node lesser;
+        private final Node greater;
+
+        private Split(int axis, int median, Node lesser, Node greater) {
+            this.axis = axis;
+            this.median = median;
+            this.lesser = lesser;
+            this.greater = greater;
+        }
+    }
+
+    /**
+     * A range of the coordinate arrays, split on first use.
+     */
+    private final class Node {
+        private final int from;
+        private final int to;
+        private final int depth;
+        private final double minX, maxX, minY, maxY, minZ, maxZ;
+        private volatile Split split = null;
+
+        private Node(int from, int to, int depth, double minX, double maxX, double minY, double maxY, double minZ, double maxZ) {
+            this.from = from;
+            this.to = to;
+            this.depth = depth;
+            this.minX = minX;
+            this.maxX = maxX;
+            this.minY = minY;
+            this.maxY = maxY;
+            this.minZ = minZ;
+            this.maxZ = maxZ;
+        }
+
+        /**
+         * Squared distance from a point to the bounding box, 0 if the point is inside.
+         */
+        private double distanceSq(double x, double y, double z) {
+            double dx = x < minX ? minX - x : (x > maxX ? x - maxX : 0);
+            double dy = y < minY ? minY - y : (y > maxY ? y - maxY : 0);
+            double dz = z < minZ ? minZ - z : (z > maxZ ? z - maxZ : 0);
+            return dx * dx + dy * dy + dz * dz;
+        }
+
+        private Split split() {
+            Split result = split;
+            if (result == null) {
+                synchronized (this) {
+                    result = split;
+                    if (result == null) {
+                        int axis = depth % 3;
+                        int median = (from + to) >>> 1;
+                        select(from, to, median, axis(axis));
+                        result = new Split(axis, median, createNode(from, median, depth + 1), createNode(median + 1, to, depth + 1));
+                        split = result;
+                        splitNodes.increment();
+                        partitionedPoints.add(to - from);
+                    }
+                }
+            }
+            return result;
+        }
+    }
+}
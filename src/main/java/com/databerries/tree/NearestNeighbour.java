@@ -0,0 +1,75 @@
+package com.databerries.tree;
+
+/**
+ * Result of a search of a {@link NearestNeighbourIndex}, owned by the caller and reused from one
+ * search to the next.
+ *
+ * Among points at the same distance, the first one by coordinates, as {@link XYZPoint#compareTo},
+ * then by index is kept, so that every index gives the same answer.
+ */
+public class NearestNeighbour {
+    int point;
+    double x;
+    double y;
+    double z;
+    double distanceSq;
+    boolean exact;
+    int visitedNodes;
+    int maxVisitedNodes;
+
+    public NearestNeighbour() {
+        reset(Integer.MAX_VALUE);
+    }
+
+    void reset(int maxVisitedNodes) {
+        this.point = -1;
+        this.distanceSq = Double.POSITIVE_INFINITY;
+        this.exact = true;
+        this.visitedNodes = 0;
+        this.maxVisitedNodes = maxVisitedNodes;
+    }
+
+    /**
+     * Keeps a candidate if it comes before the current answer.
+     *
+     * @param point
+     *            index of the candidate in the arrays the index was built from.
+     */
+    void offer(int point, double x, double y, double z, double distanceSq) {
+        if (distanceSq < this.distanceSq || (distanceSq == this.distanceSq && this.point >= 0 && comesFirst(point, x, y, z))) {
+            this.point = point;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.distanceSq = distanceSq;
+        }
+    }
+
+    private boolean comesFirst(int point, double x, double y, double z) {
+        int compare = XYZPoint.compare(x, y, z, this.x, this.y, this.z);
+        return compare < 0 || (compare == 0 && point < this.point);
+    }
+
+    /**
+     * @return index of the nearest point in the arrays the index was built from, -1 if the index
+     *         is empty.
+     */
+    public int getPoint() {
+        return point;
+    }
+
+    public double getDistance() {
+        return Math.sqrt(distanceSq);
+    }
+
+    /**
+     * @return true if no subtree that could hold a nearer point has been skipped.
+     */
+    public boolean isExact() {
+        return exact;
+    }
+
+    public int getVisitedNodes() {
+        return visitedNodes;
+    }
+}
@@ -0,0 +1,64 @@
+package com.databerries.tree;
+
+/**
+ * An index answering nearest neighbour queries over points given as coordinate arrays, see
+ * {@link ArrayKdTree} and {@link LazyKdTree}. A point is identified by its index in the arrays
+ * the index was built from, so that the caller keeps whatever it needs about a point in its own
+ * columns. Queries may run concurrently.
+ */
+public interface NearestNeighbourIndex {
+
+    /**
+     * Searches the nearest neighbor with a bounded effort, filling a result owned by the caller
+     * so that repeated searches do not allocate. The value is given by its coordinates, so that
+     * no point has to be created for it.
+     *
+     * @param x
+     *            of the value to find the neighbor of.
+     * @param epsilon
+     *            allowed relative error, 0 for an exact search.
+     * @param maxVisitedNodes
+     *            maximum number of points visited, Integer.MAX_VALUE for no limit.
+     * @param result
+     *            reused result.
+     * @return result, its point is -1 if the index is empty.
+     */
+    NearestNeighbour nearestNeighbour(double x, double y, double z, double epsilon, int maxVisitedNodes, NearestNeighbour result);
+
+    /**
+     * Visits every point within a euclidean distance of a center, in no particular order.
+     *
+     * @param x
+     *            of the center of the query.
+     * @param radius
+     *            maximum euclidean distance, inclusive.
+     * @param visitor
+     *            receives the matching points with their squared distance to the center.
+     * @return false if the visitor stopped the query.
+     */
+    boolean radiusSearch(double x, double y, double z, double radius, PointVisitor visitor);
+
+    /**
+     * Visits every point inside an axis aligned box, bounds included, in no particular order.
+     *
+     * @param visitor
+     *            receives the matching points with their squared distance to the center of the box.
+     * @return false if the visitor stopped the query.
+     */
+    boolean boxSearch(double minX, double maxX, double minY, double maxY, double minZ, double maxZ, PointVisitor visitor);
+
+    /**
+     * Visits every point inside a latitude / longitude box, in no particular order.
+     *
+     * @param visitor
+     *            receives the matching points with their squared distance to the center of the
+     *            xyz box enclosing the latitude / longitude box.
+     * @return false if the visitor stopped the query.
+     */
+    boolean latitudeLongitudeBoxSearch(LatitudeLongitudeBox box, PointVisitor visitor);
+
+    /**
+     * @return number of points.
+     */
+    int size();
+}
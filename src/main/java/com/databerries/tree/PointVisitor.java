@@ -0,0 +1,18 @@
+package com.databerries.tree;
+
+/**
+ * Receives the points matched by a range query of a {@link NearestNeighbourIndex}, one at a time,
+ * so that no result collection has to be built.
+ */
+@FunctionalInterface
+public interface PointVisitor {
+
+    /**
+     * @param index
+     *            index of the point matched in the arrays the index was built from.
+     * @param distanceSq
+     *            squared euclidean distance from the point to the center of the query.
+     * @return true to continue the query, false to stop it.
+     */
+    boolean visit(int index, double distanceSq);
+}
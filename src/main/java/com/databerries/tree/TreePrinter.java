@@ -1,49 +1,70 @@
 package com.databerries.tree;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 public class TreePrinter {
 
     public static <T extends XYZPoint> String getString(KdTree<T> tree) {
-        if (tree.root == null)
-            return "Tree has no nodes.";
-        return getString(tree.root, "", true);
+        StringWriter writer = new StringWriter();
+        try {
+            print(tree, writer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return writer.toString();
     }
 
-    private static String getString(KdNode node, String prefix, boolean isTail) {
-        StringBuilder builder = new StringBuilder();
-
-        if (node.parent != null) {
-            String side = "left";
-            if (node.parent.greater != null && node.id.equals(node.parent.greater.id))
-                side = "right";
-            builder.append(prefix)
-                    .append(isTail ? "└── " : "├── ")
-                    .append("[").append(side).append("] ")
-                    .append("depth=").append(node.depth).append(" id=").append(node.id).append("\n");
-        } else {
-            builder.append(prefix)
-                    .append(isTail ? "└── " : "├── ")
-                    .append("depth=").append(node.depth).append(" id=").append(node.id).append("\n");
-        }
-        List<KdNode> children = null;
-        if (node.lesser != null || node.greater != null) {
-            children = new ArrayList<>(2);
-            if (node.lesser != null)
-                children.add(node.lesser);
-            if (node.greater != null)
-                children.add(node.greater);
+    /**
+     * Writes the tree one node per line, in pre-order, with the same layout as
+     * {@link #getString}. The tree is walked without recursion and each line is written as soon as
+     * it is built, so a large or degenerate tree can be dumped to a file.
+     *
+     * @param writer
+     *            receives the dump, it is neither flushed nor closed.
+     */
+    public static <T extends XYZPoint> void print(KdTree<T> tree, Writer writer) throws IOException {
+        if (tree.root == null) {
+            writer.write("Tree has no nodes.");
+            return;
         }
-        if (children != null) {
-            for (int i = 0; i < children.size() - 1; i++) {
-                builder.append(getString(children.get(i), prefix + (isTail ? "    " : "│   "), false));
+        // The prefix of a node is the prefix of its parent plus one indentation
+        StringBuilder prefix = new StringBuilder();
+        StringBuilder line = new StringBuilder();
+        Deque<KdNode<?>> nodes = new ArrayDeque<>();
+        Deque<Integer> prefixLengths = new ArrayDeque<>();
+        Deque<Boolean> tails = new ArrayDeque<>();
+        nodes.push(tree.root);
+        prefixLengths.push(0);
+        tails.push(true);
+        while (!nodes.isEmpty()) {
+            KdNode<?> node = nodes.pop();
+            boolean isTail = tails.pop();
+            prefix.setLength(prefixLengths.pop());
+
+            line.setLength(0);
+            line.append(prefix).append(isTail ? "└── " : "├── ");
+            if (node.parent != null)
+                line.append("[").append(node == node.parent.greater ? "right" : "left").append("] ");
+            line.append("depth=").append(node.depth).append(" id=").append(node.id).append("\n");
+            writer.append(line);
+
+            prefix.append(isTail ? "    " : "│   ");
+            // Pushed in reverse, the lesser child is written first
+            if (node.greater != null) {
+                nodes.push(node.greater);
+                prefixLengths.push(prefix.length());
+                tails.push(true);
             }
-            if (children.size() >= 1) {
-                builder.append(getString(children.get(children.size() - 1), prefix + (isTail ? "    " : "│   "),
-                        true));
+            if (node.lesser != null) {
+                nodes.push(node.lesser);
+                prefixLengths.push(prefix.length());
+                tails.push(node.greater == null);
             }
         }
-        return builder.toString();
     }
-}
\ No newline at end of file
+}
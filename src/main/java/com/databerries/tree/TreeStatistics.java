@@ -0,0 +1,263 @@
+package com.databerries.tree;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Shape of a {@link KdTree}, to see how far it is from a balanced tree after adds and removes.
+ *
+ * The imbalance of a node is the size of its larger child subtree over the size of its subtree:
+ * about 0.5 for a balanced node, close to 1 when one side holds everything. It is only measured
+ * on subtrees of at least {@link #MIN_SUBTREE_SIZE} nodes, smaller ones are never balanced.
+ */
+public final class TreeStatistics {
+
+    static final int MIN_SUBTREE_SIZE = 64;
+
+    private final int size;
+    private final int leaves;
+    private final long[] depthCounts;
+    private final int maxDepth;
+    private final double meanDepth;
+    private final double maxImbalance;
+    private final double meanImbalance;
+    private final int duplicateCoordinates;
+    private final long rebuilds;
+
+    private TreeStatistics(int size, int leaves, long[] depthCounts, int maxDepth, double meanDepth, double maxImbalance,
+                           double meanImbalance, int duplicateCoordinates, long rebuilds) {
+        this.size = size;
+        this.leaves = leaves;
+        this.depthCounts = depthCounts;
+        this.maxDepth = maxDepth;
+        this.meanDepth = meanDepth;
+        this.maxImbalance = maxImbalance;
+        this.meanImbalance = meanImbalance;
+        this.duplicateCoordinates = duplicateCoordinates;
+        this.rebuilds = rebuilds;
+    }
+
+    /**
+     * Walks the tree without recursion, so that a degenerate tree can be measured.
+     */
+    static TreeStatistics of(KdNode<?> root, long rebuilds) {
+        // Pre-order, a parent always comes before its children
+        List<XYZPoint> points = new ArrayList<>();
+        int[] parents = new int[16];
+        Deque<KdNode<?>> stack = new ArrayDeque<>();
+        int[] parentStack = new int[16];
+        if (root != null) {
+            stack.push(root);
+            parentStack[0] = -1;
+        }
+        while (!stack.isEmpty()) {
+            KdNode<?> node = stack.pop();
+            int index = points.size();
+            points.add(node.id);
+            if (index == parents.length)
+                parents = Arrays.copyOf(parents, 2 * index);
+            parents[index] = parentStack[stack.size()];
+            if (stack.size() + 2 > parentStack.length)
+                parentStack = Arrays.copyOf(parentStack, 2 * parentStack.length);
+            if (node.greater != null) {
+                parentStack[stack.size()] = index;
+                stack.push(node.greater);
+            }
+            if (node.lesser != null) {
+                parentStack[stack.size()] = index;
+                stack.push(node.lesser);
+            }
+        }
+
+        int size = points.size();
+        double[] x = new double[size];
+        double[] y = new double[size];
+        double[] z = new double[size];
+        for (int i = 0; i < size; i++) {
+            x[i] = points.get(i).x;
+            y[i] = points.get(i).y;
+            z[i] = points.get(i).z;
+        }
+        return of(size, parents, x, y, z, rebuilds);
+    }
+
+    /**
+     * @param parents
+     *            position of the parent of each node, -1 for the root. The nodes are in pre-order,
+     *            a parent always comes before its children.
+     * @param x
+     *            x of the point of each node.
+     */
+    static TreeStatistics of(int size, int[] parents, double[] x, double[] y, double[] z, long rebuilds) {
+        int[] depths = new int[size];
+        int[] children = new int[size];
+        int maxDepth = 0;
+        long depthSum = 0;
+        for (int i = 0; i < size; i++) {
+            depths[i] = parents[i] < 0 ? 0 : depths[parents[i]] + 1;
+            maxDepth = Math.max(maxDepth, depths[i]);
+            depthSum += depths[i];
+            if (parents[i] >= 0)
+                children[parents[i]]++;
+        }
+        int leaves = 0;
+        long[] depthCounts = new long[size == 0 ? 0 : maxDepth + 1];
+        for (int i = 0; i < size; i++) {
+            depthCounts[depths[i]]++;
+            if (children[i] == 0)
+                leaves++;
+        }
+
+        // Children come after their parent, so sizes are complete when walking backwards
+        int[] subtreeSizes = new int[size];
+        int[] largerChildSizes = new int[size];
+        double maxImbalance = 0;
+        double imbalanceSum = 0;
+        int measured = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            subtreeSizes[i]++;
+            if (subtreeSizes[i] >= MIN_SUBTREE_SIZE) {
+                double imbalance = (double) largerChildSizes[i] / subtreeSizes[i];
+                maxImbalance = Math.max(maxImbalance, imbalance);
+                imbalanceSum += imbalance;
+                measured++;
+            }
+            int parent = parents[i];
+            if (parent >= 0) {
+                subtreeSizes[parent] += subtreeSizes[i];
+                largerChildSizes[parent] = Math.max(largerChildSizes[parent], subtreeSizes[i]);
+            }
+        }
+
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        sortByCoordinates(order, 0, size, x, y, z);
+        // Every point of a group of equal coordinates counts, the first one included
+        int duplicateCoordinates = 0;
+        for (int i = 0; i < size; ) {
+            int j = i + 1;
+            while (j < size && compare(order[i], order[j], x, y, z) == 0)
+                j++;
+            if (j - i > 1)
+                duplicateCoordinates += j - i;
+            i = j;
+        }
+
+        return new TreeStatistics(size, leaves, depthCounts, maxDepth, size == 0 ? 0 : (double) depthSum / size,
+                maxImbalance, measured == 0 ? 0 : imbalanceSum / measured, duplicateCoordinates, rebuilds);
+    }
+
+    /**
+     * Sorts positions by the coordinates of their points, in the order of {@link XYZPoint#compareTo}.
+     * Three way quicksort, so that many equal points do not degrade it, recursing on the smaller
+     * side.
+     */
+    private static void sortByCoordinates(int[] order, int from, int to, double[] x, double[] y, double[] z) {
+        while (to - from > 1) {
+            int pivot = order[(from + to) >>> 1];
+            int less = from;
+            int i = from;
+            int greater = to;
+            while (i < greater) {
+                int compare = compare(order[i], pivot, x, y, z);
+                if (compare < 0)
+                    swap(order, less++, i++);
+                else if (compare > 0)
+                    swap(order, i, --greater);
+                else
+                    i++;
+            }
+            if (less - from < to - greater) {
+                sortByCoordinates(order, from, less, x, y, z);
+                from = greater;
+            } else {
+                sortByCoordinates(order, greater, to, x, y, z);
+                to = less;
+            }
+        }
+    }
+
+    private static int compare(int i, int j, double[] x, double[] y, double[] z) {
+        return XYZPoint.compare(x[i], y[i], z[i], x[j], y[j], z[j]);
+    }
+
+    private static void swap(int[] order, int i, int j) {
+        int t = order[i];
+        order[i] = order[j];
+        order[j] = t;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getLeaves() {
+        return leaves;
+    }
+
+    /**
+     * @return number of nodes at each depth, the root is at depth 0.
+     */
+    public long[] getDepthCounts() {
+        return depthCounts.clone();
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @return maximum depth of a balanced tree of the same size, floor(log2(size)).
+     */
+    public int getBalancedDepth() {
+        return size <= 1 ? 0 : 31 - Integer.numberOfLeadingZeros(size);
+    }
+
+    public double getMeanDepth() {
+        return meanDepth;
+    }
+
+    /**
+     * @return largest imbalance of a subtree, 0 if no subtree is big enough to be measured.
+     */
+    public double getMaxImbalance() {
+        return maxImbalance;
+    }
+
+    public double getMeanImbalance() {
+        return meanImbalance;
+    }
+
+    /**
+     * @return number of points having the same coordinates as another point of the tree.
+     */
+    public int getDuplicateCoordinates() {
+        return duplicateCoordinates;
+    }
+
+    /**
+     * @return number of subtrees rebuilt by the tree because they were too unbalanced.
+     */
+    public long getRebuilds() {
+        return rebuilds;
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + size +
+                " leaves=" + leaves +
+                " maxDepth=" + maxDepth +
+                " balancedDepth=" + getBalancedDepth() +
+                " meanDepth=" + String.format("%.2f", meanDepth) +
+                " maxImbalance=" + String.format("%.3f", maxImbalance) +
+                " meanImbalance=" + String.format("%.3f", meanImbalance) +
+                " duplicateCoordinates=" + duplicateCoordinates +
+                " rebuilds=" + rebuilds +
+                " depthCounts=" + Arrays.toString(depthCounts);
+    }
+}
@@ -46,9 +46,25 @@ public class XYZPoint implements Comparable<XYZPoint>, Serializable {
      * @param longitude
      */
     protected XYZPoint(double r, Double latitude, Double longitude) {
-        x = r * cos(Math.toRadians(latitude)) * cos(Math.toRadians(longitude));
-        y = r * cos(Math.toRadians(latitude)) * sin(Math.toRadians(longitude));
-        z = r * sin(Math.toRadians(latitude));
+        x = toX(r, latitude, longitude);
+        y = toY(r, latitude, longitude);
+        z = toZ(r, latitude);
+    }
+
+    /**
+     * Cartesian coordinates of a latitude and a longitude, the same as the ones of
+     * {@link #XYZPoint(double, Double, Double)} but without creating a point.
+     */
+    public static double toX(double r, double latitude, double longitude) {
+        return r * cos(Math.toRadians(latitude)) * cos(Math.toRadians(longitude));
+    }
+
+    public static double toY(double r, double latitude, double longitude) {
+        return r * cos(Math.toRadians(latitude)) * sin(Math.toRadians(longitude));
+    }
+
+    public static double toZ(double r, double latitude) {
+        return r * sin(Math.toRadians(latitude));
     }
 
     public double getX() {
@@ -130,6 +146,25 @@ public class XYZPoint implements Comparable<XYZPoint>, Serializable {
         return Z_COMPARATOR.compare(this, o);
     }
 
+    /**
+     * Same order as {@link #compareTo}, on coordinates.
+     */
+    static int compare(double x1, double y1, double z1, double x2, double y2, double z2) {
+        if (x1 < x2)
+            return -1;
+        if (x1 > x2)
+            return 1;
+        if (y1 < y2)
+            return -1;
+        if (y1 > y2)
+            return 1;
+        if (z1 < z2)
+            return -1;
+        if (z1 > z2)
+            return 1;
+        return 0;
+    }
+
     @Override
     public String toString() {
         return "(" +
@@ -0,0 +1,216 @@
+package com.databerries;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Files written by {@link BgzfOutputStream} read back by {@link IOUtils#readSegments}, whatever
+ * the number of segments: lines cut by a block end up whole in a single segment, a line longer
+ * than a block included, and a damaged file is rejected instead of read short.
+ */
+public class BgzfTest {
+    private static final int[] SEGMENT_COUNTS = {1, 2, 3, 7, 64, 1000};
+
+    private static ExecutorService executorService;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void createExecutor() {
+        executorService = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterClass
+    public static void shutdownExecutor() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void indexesEveryBlock() throws Exception {
+        byte[] data = csv(new Random(3), 20_000, false);
+        Path path = write(data, null, true);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Bgzf.Index index = Bgzf.index(channel);
+            assertNotNull(index);
+            assertEquals(data.length, index.dataSize());
+            // Full blocks, then the end of file marker
+            int blocks = (data.length + Bgzf.MAX_BLOCK_DATA_SIZE - 1) / Bgzf.MAX_BLOCK_DATA_SIZE;
+            assertEquals(blocks + 1, index.size());
+        }
+    }
+
+    @Test
+    public void readsLinesAcrossBlocks() throws Exception {
+        assertSegmentsRoundTrip(csv(new Random(5), 50_000, false), null, true);
+    }
+
+    @Test
+    public void readsALastLineWithoutNewline() throws Exception {
+        byte[] data = csv(new Random(7), 20_000, false);
+        assertSegmentsRoundTrip(Arrays.copyOf(data, data.length - 1), null, true);
+    }
+
+    @Test
+    public void readsLinesLongerThanABlock() throws Exception {
+        assertSegmentsRoundTrip(csv(new Random(11), 2_000, true), null, true);
+    }
+
+    @Test
+    public void readsFlushedBlocks() throws Exception {
+        // Short blocks ending anywhere in a line, as written by the chunks of a run
+        Random random = new Random(13);
+        byte[] data = csv(random, 30_000, false);
+        int[] flushes = new int[200];
+        for (int i = 0; i < flushes.length; i++) {
+            flushes[i] = random.nextInt(data.length);
+        }
+        Arrays.sort(flushes);
+        assertSegmentsRoundTrip(data, flushes, true);
+    }
+
+    @Test
+    public void readsAFileWithoutEndOfFileMarker() throws Exception {
+        assertSegmentsRoundTrip(csv(new Random(17), 20_000, false), null, false);
+    }
+
+    @Test
+    public void readsAnEmptyFile() throws Exception {
+        assertSegmentsRoundTrip(new byte[0], null, true);
+    }
+
+    @Test
+    public void readsAPlainGzip() throws Exception {
+        byte[] data = csv(new Random(19), 20_000, false);
+        Path path = folder.newFile("plain.csv.gz").toPath();
+        try (OutputStream outputStream = new GZIPOutputStream(Files.newOutputStream(path))) {
+            outputStream.write(data);
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            assertNull(Bgzf.index(channel));
+        }
+        for (int numberOfSegment : SEGMENT_COUNTS) {
+            assertSegments(data, IOUtils.readSegments(path.toString(), numberOfSegment, executorService));
+        }
+    }
+
+    @Test
+    public void rejectsATruncatedBlock() throws Exception {
+        byte[] data = csv(new Random(23), 20_000, false);
+        Path path = write(data, null, false);
+        byte[] bytes = Files.readAllBytes(path);
+        // Inside the compressed data of the last block, inside the header of the second one and
+        // inside the first one
+        assertRejected(bytes, bytes.length - 100);
+        int firstBlockSize = ((bytes[16] & 0xff) | (bytes[17] & 0xff) << 8) + 1;
+        assertRejected(bytes, firstBlockSize + 5);
+        assertRejected(bytes, 100);
+    }
+
+    private void assertSegmentsRoundTrip(byte[] data, int[] flushes, boolean endOfFile) throws Exception {
+        Path path = write(data, flushes, endOfFile);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            assertNotNull("Not read as BGZF", Bgzf.index(channel));
+        }
+        for (int numberOfSegment : SEGMENT_COUNTS) {
+            assertSegments(data, IOUtils.readSegments(path.toString(), numberOfSegment, executorService));
+        }
+    }
+
+    private static void assertSegments(byte[] data, List<byte[]> segments) throws IOException {
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        for (int i = 0; i < segments.size(); i++) {
+            byte[] segment = segments.get(i);
+            assertTrue("Empty segment " + i, segment.length > 0);
+            if (i < segments.size() - 1)
+                assertEquals("Segment " + i + " does not end on a line boundary", '\n', segment[segment.length - 1]);
+            read.write(segment);
+        }
+        assertArrayEquals(data, read.toByteArray());
+    }
+
+    private void assertRejected(byte[] bytes, int size) throws Exception {
+        Path truncated = folder.newFile("truncated-" + size + ".csv.gz").toPath();
+        Files.write(truncated, Arrays.copyOf(bytes, size));
+        try {
+            IOUtils.readSegments(truncated.toString(), 4, executorService);
+            fail("A file truncated to " + size + " bytes must be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * @param flushes
+     *            positions the stream is flushed at, in order, or null.
+     * @param endOfFile
+     *            ends the file with the end of file marker.
+     */
+    private Path write(byte[] data, int[] flushes, boolean endOfFile) throws IOException {
+        Path path = folder.newFile("input" + (flushes == null ? "" : "-flushed") + (endOfFile ? "" : "-no-eof") + ".csv.gz").toPath();
+        try (OutputStream fileStream = Files.newOutputStream(path)) {
+            BgzfOutputStream outputStream = new BgzfOutputStream(fileStream);
+            int position = 0;
+            if (flushes != null) {
+                for (int flush : flushes) {
+                    outputStream.write(data, position, flush - position);
+                    outputStream.flush();
+                    position = flush;
+                }
+            }
+            outputStream.write(data, position, data.length - position);
+            if (endOfFile) {
+                outputStream.close();
+            } else {
+                outputStream.flush();
+            }
+        }
+        return path;
+    }
+
+    /**
+     * @param longLines
+     *            some rows carry a column longer than a block.
+     */
+    private static byte[] csv(Random random, int rows, boolean longLines) {
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < rows; i++) {
+            csv.append(String.format(Locale.ROOT, "%.5f,%.5f,", random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180));
+            if (longLines && random.nextInt(20) == 0) {
+                for (int j = 0, length = Bgzf.MAX_BLOCK_DATA_SIZE + random.nextInt(3 * Bgzf.MAX_BLOCK_DATA_SIZE); j < length; j++) {
+                    csv.append((char) ('a' + random.nextInt(26)));
+                }
+            } else {
+                csv.append(random.nextBoolean() ? "null" : "Zone/" + random.nextInt(400));
+            }
+            csv.append('\n');
+        }
+        return csv.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,229 @@
+package com.databerries;
+
+import com.databerries.tree.ArrayKdTree;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.IntFunction;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A run interrupted after a commit, with a partial chunk past the committed size, resumed to the
+ * output of an uninterrupted run; the persisted index read back; and checkpoints of other
+ * settings discarded.
+ */
+public class CheckpointTest {
+    private static final int CHUNKS = 12;
+    private static final int CHUNKS_PER_PARTITION = 4;
+    private static final int ROWS_PER_CHUNK = 500;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void resumesAPlainOutput() throws Exception {
+        assertResumedOutputIsTheSame(false, false, 5);
+    }
+
+    @Test
+    public void resumesACompressedOutput() throws Exception {
+        assertResumedOutputIsTheSame(true, false, 5);
+    }
+
+    @Test
+    public void resumesInsideAPartition() throws Exception {
+        assertResumedOutputIsTheSame(true, true, 5);
+    }
+
+    @Test
+    public void resumesAfterACompletePartition() throws Exception {
+        // The committed partition lacks its end of file marker, the next one is not started
+        assertResumedOutputIsTheSame(true, true, CHUNKS_PER_PARTITION);
+    }
+
+    @Test
+    public void reloadsTheIndex() throws Exception {
+        Path directory = folder.newFolder("index").toPath();
+        Properties settings = settings("input.csv", "50");
+        ArrayKdTree kdTree = randomTree(new Random(7), 1000);
+        Checkpoint.open(directory, settings, partition -> null, false, CHUNKS, 0).saveIndex(kdTree);
+
+        Checkpoint checkpoint = Checkpoint.open(directory, settings, partition -> null, false, CHUNKS, 0);
+        ArrayKdTree loaded = checkpoint.loadIndex(locations(1000));
+        assertNotNull(loaded);
+        assertArrayEquals(serialize(kdTree), serialize(loaded));
+        // The index of other locations is not used
+        assertNull(checkpoint.loadIndex(locations(999)));
+
+        // Nor the index of another version
+        try (RandomAccessFile file = new RandomAccessFile(directory.resolve("index.bin").toFile(), "rw")) {
+            file.writeInt(1);
+        }
+        assertNull(checkpoint.loadIndex(locations(1000)));
+    }
+
+    @Test
+    public void anotherThresholdStartsOver() throws Exception {
+        assertStartsOver(settings("input.csv", "50"), settings("input.csv", "60"));
+    }
+
+    @Test
+    public void anotherEpsilonStartsOver() throws Exception {
+        assertStartsOver(settings("input.csv", "50", "--epsilon=0.1"), settings("input.csv", "50", "--epsilon=0.2"));
+        assertStartsOver(settings("input.csv", "50"), settings("input.csv", "50", "--epsilon=0.1"));
+    }
+
+    @Test
+    public void anotherIntervalResumes() throws Exception {
+        Path directory = folder.newFolder("interval").toPath();
+        Path output = directory.resolve("output");
+        interruptedRun(directory.resolve("checkpoint"), settings("input.csv", "50", "--checkpoint-interval=10"), partition -> output, false, false, 5);
+
+        Checkpoint checkpoint = Checkpoint.open(directory.resolve("checkpoint"), settings("input.csv", "50", "--checkpoint-interval=60"),
+                partition -> output, false, CHUNKS, 0);
+        assertEquals(5, checkpoint.committedChunks());
+        assertNotNull(checkpoint.loadIndex(locations(100)));
+    }
+
+    private void assertResumedOutputIsTheSame(boolean compress, boolean partitioned, int interruptedAfter) throws Exception {
+        Path expected = folder.newFolder().toPath();
+        Properties settings = settings("input.csv", "50");
+        try (OrderedWriter writer = new OrderedWriter(partition -> Files.newOutputStream(expected.resolve("output_" + partition)), compress, 3)) {
+            writeChunks(writer, partitioned, 0);
+        }
+
+        Path actual = folder.newFolder().toPath();
+        Path directory = actual.resolve("checkpoint");
+        interruptedRun(directory, settings, partition -> actual.resolve("output_" + partition), compress, partitioned, interruptedAfter);
+
+        Checkpoint checkpoint = Checkpoint.open(directory, settings, partition -> actual.resolve("output_" + partition), compress, CHUNKS, 0);
+        assertFalse(checkpoint.isComplete());
+        assertEquals(interruptedAfter, checkpoint.committedChunks());
+        try (OrderedWriter writer = new OrderedWriter(checkpoint, checkpoint, compress, 3, checkpoint.committedChunks())) {
+            writeChunks(writer, partitioned, checkpoint.committedChunks());
+        }
+        assertTrue(Checkpoint.open(directory, settings, partition -> actual.resolve("output_" + partition), compress, CHUNKS, 0).isComplete());
+
+        int partitions = partitioned ? CHUNKS / CHUNKS_PER_PARTITION : 1;
+        for (int partition = 0; partition < partitions; partition++) {
+            assertArrayEquals("Partition " + partition,
+                    Files.readAllBytes(expected.resolve("output_" + partition)), Files.readAllBytes(actual.resolve("output_" + partition)));
+        }
+    }
+
+    private void assertStartsOver(Properties previous, Properties next) throws Exception {
+        Path directory = folder.newFolder().toPath();
+        Path output = directory.resolve("output");
+        interruptedRun(directory.resolve("checkpoint"), previous, partition -> output, false, false, 5);
+
+        Checkpoint checkpoint = Checkpoint.open(directory.resolve("checkpoint"), next, partition -> output, false, CHUNKS, 0);
+        assertEquals(0, checkpoint.committedChunks());
+        assertFalse(Files.exists(directory.resolve("checkpoint").resolve("index.bin")));
+        assertNull(checkpoint.loadIndex(locations(100)));
+    }
+
+    /**
+     * Runs until a chunk is committed then stops as a killed process would: the output is not
+     * closed and a partial chunk follows the committed bytes. The index is saved first.
+     */
+    private static void interruptedRun(Path directory, Properties settings, IntFunction<Path> outputPaths,
+                                       boolean compress, boolean partitioned, int interruptedAfter) throws Exception {
+        Checkpoint checkpoint = Checkpoint.open(directory, settings, outputPaths, compress, CHUNKS, 0);
+        checkpoint.saveIndex(randomTree(new Random(11), 100));
+        OrderedWriter.Listener listener = new OrderedWriter.Listener() {
+            @Override
+            public void written(long sequence, int partition) throws IOException {
+                checkpoint.written(sequence, partition);
+                if (sequence + 1 == interruptedAfter) {
+                    try (OutputStream outputStream = Files.newOutputStream(outputPaths.apply(partition), StandardOpenOption.APPEND)) {
+                        outputStream.write("partial,chunk,Zone/".getBytes(StandardCharsets.UTF_8));
+                    }
+                    throw new IOException("killed");
+                }
+            }
+
+            @Override
+            public void closed() throws IOException {
+                checkpoint.closed();
+            }
+        };
+        try (OrderedWriter writer = new OrderedWriter(checkpoint, listener, compress, 3, 0)) {
+            writeChunks(writer, partitioned, 0);
+            fail("The run must be interrupted");
+        } catch (IOException e) {
+            assertEquals("killed", e.getCause().getMessage());
+        }
+    }
+
+    private static void writeChunks(OrderedWriter writer, boolean partitioned, long firstChunk) throws Exception {
+        for (long chunk = firstChunk; chunk < CHUNKS; chunk++) {
+            OrderedWriter.Buffer buffer = writer.acquire(partitioned ? (int) (chunk / CHUNKS_PER_PARTITION) : 0);
+            StringBuilder rows = new StringBuilder();
+            for (int row = 0; row < ROWS_PER_CHUNK; row++) {
+                rows.append(chunk).append(',').append(row).append(",Zone/").append((chunk * 31 + row) % 24).append('\n');
+            }
+            buffer.stream().write(rows.toString().getBytes(StandardCharsets.UTF_8));
+            writer.submit(buffer);
+        }
+    }
+
+    /**
+     * @return the settings of a run of the command line, on a small fixed input.
+     */
+    private static Properties settings(String... args) throws Exception {
+        byte[] csv = "1.0,2.0,Europe/Paris\n3.0,4.0,\n".getBytes(StandardCharsets.UTF_8);
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            Dataset dataset = Dataset.parse(Collections.singletonList(csv), executorService);
+            return FindNearestTmz.checkpointSettings(Arguments.parse(args), dataset, args[0], Integer.parseInt(args[1]));
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    private static ArrayKdTree randomTree(Random random, int size) {
+        double[] x = new double[size];
+        double[] y = new double[size];
+        double[] z = new double[size];
+        for (int i = 0; i < size; i++) {
+            x[i] = random.nextDouble();
+            y[i] = random.nextDouble();
+            z[i] = random.nextDouble();
+        }
+        return new ArrayKdTree(x, y, z);
+    }
+
+    private static Locations locations(int size) {
+        return new Locations(new int[size], new byte[][]{"Europe/Paris".getBytes(StandardCharsets.UTF_8)});
+    }
+
+    private static byte[] serialize(ArrayKdTree kdTree) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            kdTree.write(output);
+        }
+        return bytes.toByteArray();
+    }
+}
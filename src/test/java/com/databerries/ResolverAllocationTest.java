@@ -0,0 +1,124 @@
+package com.databerries;
+
+import com.databerries.tree.ArrayKdTree;
+import com.databerries.tree.LazyKdTree;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Allocation budget of the query hot path: once warmed up, {@link Resolver#resolve} must not
+ * allocate per row searched, whatever the index and the search mode.
+ *
+ * The bytes allocated by the test thread are measured around whole resolve calls, the
+ * best of a few rounds is kept so that a background compilation does not make it fail.
+ */
+public class ResolverAllocationTest {
+    private static final int MAX_DISTANCE_IN_KM = 50;
+    private static final int QUERIES = 100_000;
+    private static final int WARM_UP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 5;
+
+    /**
+     * Bytes allowed per resolve call, for the result reused by its searches.
+     */
+    private static final long SLACK_BYTES = 1024;
+
+    private static com.sun.management.ThreadMXBean allocations;
+    private static Dataset dataset;
+
+    @BeforeClass
+    public static void createDataset() throws Exception {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        assumeTrue("Allocated bytes per thread are not supported by this JVM",
+                threadMXBean instanceof com.sun.management.ThreadMXBean
+                        && ((com.sun.management.ThreadMXBean) threadMXBean).isThreadAllocatedMemorySupported());
+        allocations = (com.sun.management.ThreadMXBean) threadMXBean;
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        // A grid of locations every half degree, then random rows without timezone around it
+        StringBuilder csv = new StringBuilder();
+        for (int lat = -60; lat <= 60; lat++) {
+            for (int lon = -180; lon < 180; lon++) {
+                csv.append(lat / 2.0).append(',').append(lon / 2.0).append(",Zone/").append((lat + lon + 240) % 24).append('\n');
+            }
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < QUERIES; i++) {
+            csv.append(String.format(Locale.ROOT, "%.5f,%.5f,null%n", random.nextDouble() * 80 - 40, random.nextDouble() * 200 - 100));
+        }
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            dataset = Dataset.parse(Collections.singletonList(csv.toString().getBytes(StandardCharsets.UTF_8)), executorService);
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    @AfterClass
+    public static void releaseDataset() {
+        dataset = null;
+    }
+
+    @Test
+    public void exactSearchAllocatesNothingPerQuery() throws Exception {
+        double[][] coordinates = dataset.locationCoordinates();
+        ArrayKdTree kdTree = new ArrayKdTree(coordinates[0], coordinates[1], coordinates[2]);
+        assertWithinBudget(new Resolver(dataset.locations(), kdTree, MAX_DISTANCE_IN_KM));
+    }
+
+    @Test
+    public void approximateSearchAllocatesNothingPerQuery() throws Exception {
+        double[][] coordinates = dataset.locationCoordinates();
+        ArrayKdTree kdTree = new ArrayKdTree(coordinates[0], coordinates[1], coordinates[2]);
+        assertWithinBudget(new Resolver(dataset.locations(), kdTree, MAX_DISTANCE_IN_KM, 0.1, 64, 5));
+    }
+
+    @Test
+    public void lazyIndexAllocatesNothingPerQueryOnceSplit() throws Exception {
+        double[][] coordinates = dataset.locationCoordinates();
+        LazyKdTree lazyKdTree = new LazyKdTree(coordinates[0], coordinates[1], coordinates[2]);
+        assertWithinBudget(new Resolver(dataset.locations(), lazyKdTree, MAX_DISTANCE_IN_KM));
+    }
+
+    private static void assertWithinBudget(Resolver resolver) throws Exception {
+        assertEquals(1, dataset.segmentCount());
+        Dataset.Segment segment = dataset.segment(0);
+        OutputStream discard = new OutputStream() {
+            @Override
+            public void write(int b) { }
+
+            @Override
+            public void write(byte[] b, int off, int len) { }
+        };
+        for (int round = 0; round < WARM_UP_ROUNDS; round++) {
+            resolver.resolve(segment, 0, segment.size(), discard);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long best = Long.MAX_VALUE;
+        int searches = 0;
+        for (int round = 0; round < MEASURED_ROUNDS; round++) {
+            long before = allocations.getThreadAllocatedBytes(threadId);
+            searches = resolver.resolve(segment, 0, segment.size(), discard);
+            best = Math.min(best, allocations.getThreadAllocatedBytes(threadId) - before);
+        }
+        assertEquals(QUERIES, searches);
+        assertTrue(String.format(Locale.ROOT, "%d bytes allocated by %d searches, %.2f bytes per search, budget 0",
+                best, searches, (double) best / searches), best <= SLACK_BYTES);
+    }
+}
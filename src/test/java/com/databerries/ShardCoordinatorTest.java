@@ -0,0 +1,178 @@
+package com.databerries;
+
+import com.databerries.tree.XYZPoint;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Sharded runs against a single process run, on points the halo of a shard must cover: along
+ * the edges of the faces and of the octants, and around the poles.
+ */
+public class ShardCoordinatorTest {
+    private static final int MAX_DISTANCE_IN_KM = 50;
+    private static final int ROWS = 6_000;
+    private static final double R = XYZPoint.EARTH_RADIUS;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void facesGiveTheOutputOfASingleProcess() throws Exception {
+        assertShardedOutputIsTheSame("faces");
+    }
+
+    @Test
+    public void octantsGiveTheOutputOfASingleProcess() throws Exception {
+        assertShardedOutputIsTheSame("octants");
+    }
+
+    @Test
+    public void aFailedWorkerStopsTheOthers() throws Exception {
+        Path directory = folder.newFolder("failed").toPath();
+        Path input = directory.resolve("input.csv");
+        Files.write(input, csv(new Random(31), false));
+        Path pids = Files.createDirectory(directory.resolve("pids"));
+
+        // The worker of shard 0 fails once the others are started, they would run for minutes
+        ShardCoordinator coordinator = new ShardCoordinator(input.toString(), ShardCoordinator.Partitioning.FACES, MAX_DISTANCE_IN_KM,
+                directory.resolve("shards"), Collections.emptyList()) {
+            @Override
+            List<String> workerCommand(int shard) {
+                List<String> command = new ArrayList<>();
+                command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(Worker.class.getName());
+                command.add(pids.toString());
+                command.add(Integer.toString(shard));
+                command.add(shard == 0 ? "fail" : "sleep");
+                return command;
+            }
+        };
+        long start = System.nanoTime();
+        try {
+            coordinator.run(new ByteArrayOutputStream(), ShardCoordinator.Partitioning.FACES.numberOfShard);
+            fail("The failure of a worker must fail the run");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("shard 0"));
+        }
+        assertTrue("The run must not wait for the other workers", System.nanoTime() - start < 120_000_000_000L);
+
+        List<Path> started = new ArrayList<>();
+        try (Stream<Path> files = Files.list(pids)) {
+            files.filter(file -> !file.toString().endsWith(".tmp")).forEach(started::add);
+        }
+        assertEquals(ShardCoordinator.Partitioning.FACES.numberOfShard, started.size());
+        for (Path pid : started) {
+            Optional<ProcessHandle> process = ProcessHandle.of(Long.parseLong(new String(Files.readAllBytes(pid), StandardCharsets.US_ASCII)));
+            assertFalse("Worker " + pid.getFileName() + " still runs", process.isPresent() && process.get().isAlive());
+        }
+    }
+
+    private void assertShardedOutputIsTheSame(String shards) throws Exception {
+        byte[] csv = csv(new Random(30), true);
+        Path single = folder.newFolder("single").toPath();
+        Files.write(single.resolve("input.csv"), csv);
+        FindNearestTmz.main(new String[]{single.resolve("input.csv").toString(), Integer.toString(MAX_DISTANCE_IN_KM)});
+
+        Path sharded = folder.newFolder(shards).toPath();
+        Files.write(sharded.resolve("input.csv"), csv);
+        FindNearestTmz.main(new String[]{sharded.resolve("input.csv").toString(), Integer.toString(MAX_DISTANCE_IN_KM),
+                "--shards=" + shards, "--processes=4"});
+
+        byte[] expected = Files.readAllBytes(single.resolve("output"));
+        // Rows resolved across the edges, or the comparison shows little
+        String output = new String(expected, StandardCharsets.UTF_8);
+        assertTrue(output.split("\n").length == 2 * ROWS && output.contains(",null\n") && output.contains("Zone/"));
+        assertArrayEquals(expected, Files.readAllBytes(sharded.resolve("output")));
+    }
+
+    /**
+     * @param nearEdges
+     *            true for points along the edges of the shards and around the poles, false for
+     *            points anywhere.
+     * @return rows with a timezone interleaved with rows without, in csv.
+     */
+    private static byte[] csv(Random random, boolean nearEdges) {
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 2 * ROWS; i++) {
+            double[] latitudeLongitude = nearEdges ? nearEdge(random, i) : new double[]{random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180};
+            String timezone = i % 2 == 0 ? "Zone/" + random.nextInt(40) : "null";
+            csv.append(String.format(Locale.ROOT, "%.5f,%.5f,%s%n", latitudeLongitude[0], latitudeLongitude[1], timezone));
+        }
+        return csv.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return latitude and longitude of a point within 100 km of an edge of a face, of an octant,
+     *         or of a pole.
+     */
+    private static double[] nearEdge(Random random, int i) {
+        while (true) {
+            double latitude = Math.toDegrees(Math.asin(random.nextDouble() * 2 - 1));
+            double longitude = random.nextDouble() * 360 - 180;
+            if (i % 10 == 0)
+                return new double[]{Math.signum(latitude) * (89 + random.nextDouble()), longitude};
+            double[] c = {
+                    Math.abs(XYZPoint.toX(R, latitude, longitude)),
+                    Math.abs(XYZPoint.toY(R, latitude, longitude)),
+                    Math.abs(XYZPoint.toZ(R, latitude))
+            };
+            Arrays.sort(c);
+            // Between two faces the two largest coordinates are equal, between two octants the
+            // smallest one is 0
+            boolean nearFaceEdge = c[2] - c[1] < 100;
+            boolean nearOctantEdge = c[0] < 100;
+            if (i % 3 == 0 ? nearFaceEdge : nearOctantEdge)
+                return new double[]{latitude, longitude};
+        }
+    }
+
+    /**
+     * Stands for a worker process: writes its pid in a directory, then fails once every worker
+     * has written its pid, or sleeps.
+     */
+    public static final class Worker {
+        public static void main(String[] args) throws Exception {
+            Path pids = Paths.get(args[0]);
+            Path pid = pids.resolve(args[1]);
+            Files.write(pids.resolve(args[1] + ".tmp"), Long.toString(ProcessHandle.current().pid()).getBytes(StandardCharsets.US_ASCII));
+            Files.move(pids.resolve(args[1] + ".tmp"), pid);
+            if (args[2].equals("fail")) {
+                long deadline = System.nanoTime() + 60_000_000_000L;
+                while (countFiles(pids) < ShardCoordinator.Partitioning.FACES.numberOfShard && System.nanoTime() < deadline)
+                    Thread.sleep(50);
+                System.exit(3);
+            }
+            Thread.sleep(10 * 60 * 1000);
+        }
+
+        private static long countFiles(Path directory) throws IOException {
+            try (Stream<Path> files = Files.list(directory)) {
+                return files.filter(file -> !file.toString().endsWith(".tmp")).count();
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.databerries.tree;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.stream.StreamSupport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class ArrayKdTreeTest {
+
+    @Test
+    public void spliteratorTraversesEveryPointOnce() {
+        int size = 100_000;
+        Random random = new Random(3);
+        double[] x = new double[size];
+        double[] y = new double[size];
+        double[] z = new double[size];
+        for (int i = 0; i < size; i++) {
+            x[i] = random.nextInt(100);
+            y[i] = random.nextDouble();
+            z[i] = random.nextDouble();
+        }
+        ArrayKdTree kdTree = new ArrayKdTree(x, y, z);
+
+        Spliterator.OfInt spliterator = kdTree.spliterator();
+        assertEquals(size, spliterator.getExactSizeIfKnown());
+        Spliterator.OfInt prefix = spliterator.trySplit();
+        assertNotNull(prefix);
+        assertEquals(size, prefix.getExactSizeIfKnown() + spliterator.getExactSizeIfKnown());
+
+        int[] counts = new int[size];
+        StreamSupport.intStream(kdTree.spliterator(), true).forEach(point -> {
+            synchronized (counts) {
+                counts[point]++;
+            }
+        });
+        int[] once = new int[size];
+        Arrays.fill(once, 1);
+        assertArrayEquals(once, counts);
+    }
+}
@@ -0,0 +1,139 @@
+package com.databerries.tree;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link DualTreeJoin} against one exact {@link NearestNeighbour} search per query: every query
+ * closer than the threshold to a reference gets the same reference at the same distance, the
+ * others get nothing.
+ */
+public class DualTreeJoinTest {
+    private static final double R = XYZPoint.EARTH_RADIUS;
+
+    @Test
+    public void randomPointsMatchTheExactSearch() {
+        Random random = new Random(21);
+        double[][] references = points(20_000, random, (r, i) -> uniform(r));
+        double[][] queries = points(20_000, random, (r, i) -> uniform(r));
+        assertSameAsExactSearch(references, queries, 50);
+        assertSameAsExactSearch(references, queries, 200);
+    }
+
+    @Test
+    public void clusteredPointsMatchTheExactSearch() {
+        Random random = new Random(22);
+        double[][] centers = points(20, random, (r, i) -> uniform(r));
+        // References in a few clusters, queries half in the clusters and half anywhere, far from
+        // any reference
+        double[][] references = points(20_000, random, (r, i) -> around(centers, r, 3));
+        double[][] queries = points(20_000, random, (r, i) -> i % 2 == 0 ? around(centers, r, 4) : uniform(r));
+        assertSameAsExactSearch(references, queries, 50);
+        assertSameAsExactSearch(references, queries, 500);
+    }
+
+    @Test
+    public void tiesMatchTheExactSearch() {
+        Random random = new Random(23);
+        // References on a lattice, repeated, and queries on the lattice or halfway between its
+        // points, at the same distance of several references
+        double[][] references = points(20_000, random, (r, i) -> latitudeLongitude(r.nextInt(60), r.nextInt(120)));
+        double[][] queries = points(20_000, random,
+                (r, i) -> latitudeLongitude(r.nextInt(60) + (i % 2) * 0.5, r.nextInt(120) + (i % 3 == 0 ? 0.5 : 0)));
+        assertSameAsExactSearch(references, queries, 50);
+        assertSameAsExactSearch(references, queries, 100);
+    }
+
+    @Test
+    public void aQueryExactlyAtTheThresholdIsNotMatched() {
+        Random random = new Random(24);
+        double[][] references = points(5_000, random, (r, i) -> uniform(r));
+        double[][] queries = points(5_000, random, (r, i) -> uniform(r));
+        ArrayKdTree kdTree = new ArrayKdTree(references[0].clone(), references[1].clone(), references[2].clone());
+        NearestNeighbour result = kdTree.nearestNeighbour(queries[0][0], queries[1][0], queries[2][0], 0, Integer.MAX_VALUE, new NearestNeighbour());
+        // The threshold is exclusive
+        assertSameAsExactSearch(references, queries, result.getDistance());
+    }
+
+    private static void assertSameAsExactSearch(double[][] references, double[][] queries, double threshold) {
+        int size = queries[0].length;
+        ArrayKdTree kdTree = new ArrayKdTree(references[0].clone(), references[1].clone(), references[2].clone());
+        int[] expected = new int[size];
+        double[] expectedDistances = new double[size];
+        int expectedMatches = 0;
+        NearestNeighbour result = new NearestNeighbour();
+        for (int i = 0; i < size; i++) {
+            kdTree.nearestNeighbour(queries[0][i], queries[1][i], queries[2][i], 0, Integer.MAX_VALUE, result);
+            boolean matched = result.getDistance() < threshold;
+            expected[i] = matched ? result.getPoint() : -1;
+            expectedDistances[i] = matched ? result.getDistance() : Double.NaN;
+            if (matched)
+                expectedMatches++;
+        }
+        // Some queries on each side of the threshold
+        assertTrue(expectedMatches > 0 && expectedMatches < size);
+
+        DualTreeJoin join = new DualTreeJoin(references[0].clone(), references[1].clone(), references[2].clone());
+        int[] actual = new int[size];
+        double[] actualDistances = new double[size];
+        Arrays.fill(actual, -1);
+        Arrays.fill(actualDistances, Double.NaN);
+        // Larger arrays than the queries, only the first size ones are joined
+        double[] x = Arrays.copyOf(queries[0], size + 10);
+        double[] y = Arrays.copyOf(queries[1], size + 10);
+        double[] z = Arrays.copyOf(queries[2], size + 10);
+        int matches = join.join(x, y, z, size, threshold, (query, reference, distance) -> {
+            assertEquals("Query " + query + " matched twice", -1, actual[query]);
+            actual[query] = reference;
+            actualDistances[query] = distance;
+        });
+
+        assertEquals(expectedMatches, matches);
+        for (int i = 0; i < size; i++) {
+            assertEquals("Query " + i, expected[i], actual[i]);
+            assertEquals("Query " + i, expectedDistances[i], actualDistances[i], 0);
+        }
+    }
+
+    private interface PointGenerator {
+        double[] next(Random random, int i);
+    }
+
+    /**
+     * @return x, y and z arrays of the points.
+     */
+    private static double[][] points(int size, Random random, PointGenerator generator) {
+        double[][] points = new double[3][size];
+        for (int i = 0; i < size; i++) {
+            double[] point = generator.next(random, i);
+            points[0][i] = point[0];
+            points[1][i] = point[1];
+            points[2][i] = point[2];
+        }
+        return points;
+    }
+
+    private static double[] uniform(Random random) {
+        return latitudeLongitude(Math.toDegrees(Math.asin(random.nextDouble() * 2 - 1)), random.nextDouble() * 360 - 180);
+    }
+
+    /**
+     * @return a point a few degrees around one of the centers.
+     */
+    private static double[] around(double[][] centers, Random random, double degrees) {
+        int center = random.nextInt(centers[0].length);
+        double latitude = Math.toDegrees(Math.atan2(centers[2][center], Math.hypot(centers[0][center], centers[1][center])));
+        double longitude = Math.toDegrees(Math.atan2(centers[1][center], centers[0][center]));
+        return latitudeLongitude(Math.max(-90, Math.min(90, latitude + random.nextGaussian() * degrees)),
+                longitude + random.nextGaussian() * degrees);
+    }
+
+    private static double[] latitudeLongitude(double latitude, double longitude) {
+        return new double[] {XYZPoint.toX(R, latitude, longitude), XYZPoint.toY(R, latitude, longitude), XYZPoint.toZ(R, latitude)};
+    }
+}
@@ -0,0 +1,130 @@
+package com.databerries.tree;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Depth and rebuild work of a {@link KdTree} with a maximum imbalance, for point sets that defeat
+ * a split on a single coordinate: equal points and points on a line.
+ */
+public class KdTreeTest {
+    private static final double MAX_IMBALANCE = 0.7;
+    private static final int CHECK_INTERVAL = 5000;
+
+    @Test
+    public void randomAddsKeepTheTreeBalanced() {
+        Random random = new Random(1);
+        addAndCheck(50_000, 500, i -> XYZPoint.createXYZ(random.nextDouble(), random.nextDouble(), random.nextDouble()));
+    }
+
+    @Test
+    public void equalPointsKeepTheTreeBalanced() {
+        addAndCheck(50_000, 500, i -> XYZPoint.createXYZ(1, 2, 3));
+    }
+
+    @Test
+    public void pointsOnAPlaneKeepTheTreeBalanced() {
+        Random random = new Random(2);
+        addAndCheck(200_000, 2000, i -> XYZPoint.createXYZ(random.nextDouble(), 0, random.nextDouble()));
+    }
+
+    @Test
+    public void sortedPointsOnALineKeepTheTreeBalanced() {
+        // Every add lands on the rightmost path: many rebuilds, of a few nodes each
+        addAndCheck(200_000, 100_000, i -> XYZPoint.createXYZ(i, 0, 0));
+    }
+
+    @Test
+    public void removesKeepTheTreeBalanced() {
+        Random random = new Random(3);
+        List<XYZPoint> points = new ArrayList<>();
+        KdTree<XYZPoint> kdTree = new KdTree<>();
+        kdTree.setMaxImbalance(MAX_IMBALANCE);
+        for (int i = 0; i < 20_000; i++) {
+            // A few groups of equal points among random ones
+            XYZPoint point = i % 5 == 0
+                    ? XYZPoint.createXYZ(random.nextInt(10), 0, 0)
+                    : XYZPoint.createXYZ(random.nextDouble(), random.nextDouble(), 0);
+            points.add(point);
+            assertTrue(kdTree.add(point));
+        }
+
+        Collections.shuffle(points, random);
+        List<XYZPoint> removed = points.subList(0, 18_000);
+        List<XYZPoint> kept = points.subList(18_000, points.size());
+        for (int i = 0; i < removed.size(); i++) {
+            assertTrue(kdTree.remove(removed.get(i)));
+            if (i % CHECK_INTERVAL == 0)
+                assertDepthBounded(kdTree.statistics());
+        }
+        TreeStatistics statistics = kdTree.statistics();
+        assertEquals(kept.size(), statistics.getSize());
+        assertEquals(kept.size(), kdTree.size());
+        Map<XYZPoint, Integer> counts = new HashMap<>();
+        for (XYZPoint point : kept) {
+            counts.merge(point, 1, Integer::sum);
+        }
+        int duplicates = 0;
+        for (int count : counts.values()) {
+            if (count > 1)
+                duplicates += count;
+        }
+        assertEquals(duplicates, statistics.getDuplicateCoordinates());
+        assertDepthBounded(statistics);
+        for (XYZPoint point : kept) {
+            assertTrue(kdTree.contains(point));
+        }
+        assertNearestIsExact(kdTree, kept, random);
+    }
+
+    private static void addAndCheck(int size, int maxRebuilds, IntFunction<XYZPoint> points) {
+        KdTree<XYZPoint> kdTree = new KdTree<>();
+        kdTree.setMaxImbalance(MAX_IMBALANCE);
+        List<XYZPoint> added = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            XYZPoint point = points.apply(i);
+            added.add(point);
+            assertTrue(kdTree.add(point));
+            if (i % CHECK_INTERVAL == 0)
+                assertDepthBounded(kdTree.statistics());
+        }
+        TreeStatistics statistics = kdTree.statistics();
+        assertEquals(size, statistics.getSize());
+        assertDepthBounded(statistics);
+        assertTrue("Too many rebuilds: " + statistics, statistics.getRebuilds() <= maxRebuilds);
+
+        Random random = new Random(4);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(kdTree.contains(added.get(random.nextInt(size))));
+        }
+        assertFalse(kdTree.contains(XYZPoint.createXYZ(-1, -1, -1)));
+        assertNearestIsExact(kdTree, added, random);
+    }
+
+    private static void assertDepthBounded(TreeStatistics statistics) {
+        double bound = Math.log(statistics.getSize()) / -Math.log(MAX_IMBALANCE) + 1;
+        assertTrue("Too deep: " + statistics, statistics.getMaxDepth() <= bound);
+    }
+
+    private static void assertNearestIsExact(KdTree<XYZPoint> kdTree, List<XYZPoint> points, Random random) {
+        for (int i = 0; i < 100; i++) {
+            XYZPoint value = XYZPoint.createXYZ(random.nextDouble(), random.nextDouble() / 100, random.nextDouble());
+            double expected = Double.POSITIVE_INFINITY;
+            for (XYZPoint point : points) {
+                expected = Math.min(expected, point.euclideanDistance(value));
+            }
+            assertEquals(expected, kdTree.nearestNeighbourSearch(1, value).get(0).getDistance(), 0);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.databerries.tree;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Concurrent queries of a cold {@link LazyKdTree}: threads race to split the same nodes on first
+ * touch, the answers must still be the ones of an {@link ArrayKdTree} and each node split once.
+ */
+public class LazyKdTreeTest {
+    private static final double R = XYZPoint.EARTH_RADIUS;
+    private static final int POINTS = 50_000;
+    private static final int QUERIES = 2_000;
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 10;
+
+    @Test
+    public void concurrentQueriesOfAColdTreeSplitEachNodeOnce() throws Exception {
+        Random random = new Random(5);
+        double[] x = new double[POINTS];
+        double[] y = new double[POINTS];
+        double[] z = new double[POINTS];
+        for (int i = 0; i < POINTS; i++) {
+            // A quarter of the points on a lattice, so that equal points tie
+            double latitude = i % 4 == 0 ? random.nextInt(90) * 2 - 90 : random.nextDouble() * 180 - 90;
+            double longitude = i % 4 == 0 ? random.nextInt(180) * 2 - 180 : random.nextDouble() * 360 - 180;
+            x[i] = XYZPoint.toX(R, latitude, longitude);
+            y[i] = XYZPoint.toY(R, latitude, longitude);
+            z[i] = XYZPoint.toZ(R, latitude);
+        }
+        double[][] queries = new double[QUERIES][];
+        for (int q = 0; q < QUERIES; q++) {
+            double latitude = q % 2 == 0 ? random.nextInt(90) * 2 - 89 : random.nextDouble() * 180 - 90;
+            double longitude = q % 2 == 0 ? random.nextInt(180) * 2 - 179 : random.nextDouble() * 360 - 180;
+            queries[q] = new double[] {XYZPoint.toX(R, latitude, longitude), XYZPoint.toY(R, latitude, longitude), XYZPoint.toZ(R, latitude)};
+        }
+
+        ArrayKdTree kdTree = new ArrayKdTree(x.clone(), y.clone(), z.clone());
+        int[] expectedPoints = new int[QUERIES];
+        double[] expectedDistances = new double[QUERIES];
+        NearestNeighbour result = new NearestNeighbour();
+        for (int q = 0; q < QUERIES; q++) {
+            kdTree.nearestNeighbour(queries[q][0], queries[q][1], queries[q][2], 0, Integer.MAX_VALUE, result);
+            expectedPoints[q] = result.getPoint();
+            expectedDistances[q] = result.getDistance();
+        }
+
+        // The same queries from a single thread give the nodes that must be split
+        LazyKdTree sequential = new LazyKdTree(x.clone(), y.clone(), z.clone());
+        for (double[] query : queries) {
+            sequential.nearestNeighbour(query[0], query[1], query[2], 0, Integer.MAX_VALUE, result);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                LazyKdTree lazyKdTree = new LazyKdTree(x.clone(), y.clone(), z.clone());
+                CyclicBarrier start = new CyclicBarrier(THREADS);
+                List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0; t < THREADS; t++) {
+                    int thread = t;
+                    futures.add(executor.submit(() -> {
+                        NearestNeighbour neighbour = new NearestNeighbour();
+                        start.await();
+                        // Every thread runs every query, half of them in reverse order
+                        for (int i = 0; i < QUERIES; i++) {
+                            int q = thread % 2 == 0 ? i : QUERIES - 1 - i;
+                            lazyKdTree.nearestNeighbour(queries[q][0], queries[q][1], queries[q][2], 0, Integer.MAX_VALUE, neighbour);
+                            assertEquals("Query " + q, expectedPoints[q], neighbour.getPoint());
+                            assertEquals("Query " + q, expectedDistances[q], neighbour.getDistance(), 0);
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+                assertEquals("Round " + round, sequential.splitNodes(), lazyKdTree.splitNodes());
+                assertEquals("Round " + round, sequential.partitionedPoints(), lazyKdTree.partitionedPoints());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.databerries.tree;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Radius and box queries of the arrays indexes against a scan of every point. The points are
+ * random with a lattice of repeated coordinates, so that points equal to a split are on both of
+ * its sides.
+ */
+public class RangeSearchTest {
+    private static final double R = XYZPoint.EARTH_RADIUS;
+    private static final int POINTS = 20_000;
+    private static final int QUERIES = 200;
+
+    private static double[] latitudes;
+    private static double[] longitudes;
+    private static double[] x;
+    private static double[] y;
+    private static double[] z;
+
+    @BeforeClass
+    public static void createPoints() {
+        Random random = new Random(7);
+        latitudes = new double[POINTS];
+        longitudes = new double[POINTS];
+        for (int i = 0; i < POINTS; i++) {
+            if (i % 4 == 0) {
+                latitudes[i] = random.nextInt(17) * 10 - 80;
+                longitudes[i] = random.nextInt(36) * 10 - 175;
+            } else {
+                latitudes[i] = Math.toDegrees(Math.asin(random.nextDouble() * 2 - 1));
+                longitudes[i] = random.nextDouble() * 360 - 180;
+            }
+        }
+        x = new double[POINTS];
+        y = new double[POINTS];
+        z = new double[POINTS];
+        for (int i = 0; i < POINTS; i++) {
+            x[i] = XYZPoint.toX(R, latitudes[i], longitudes[i]);
+            y[i] = XYZPoint.toY(R, latitudes[i], longitudes[i]);
+            z[i] = XYZPoint.toZ(R, latitudes[i]);
+        }
+    }
+
+    private static List<NearestNeighbourIndex> indexes() {
+        List<NearestNeighbourIndex> indexes = new ArrayList<>();
+        indexes.add(new ArrayKdTree(x.clone(), y.clone(), z.clone()));
+        indexes.add(new LazyKdTree(x.clone(), y.clone(), z.clone()));
+        return indexes;
+    }
+
+    @Test
+    public void radiusSearchFindsThePointsOfTheBall() {
+        Random random = new Random(11);
+        for (NearestNeighbourIndex index : indexes()) {
+            for (int q = 0; q < QUERIES; q++) {
+                // Half of the queries are centered on a point, a lattice one every other time
+                int center = random.nextInt(POINTS);
+                double cx = q % 2 == 0 ? x[center] : x[center] + random.nextGaussian() * 100;
+                double cy = q % 2 == 0 ? y[center] : y[center] + random.nextGaussian() * 100;
+                double cz = q % 2 == 0 ? z[center] : z[center] + random.nextGaussian() * 100;
+                double radius = q % 3 == 0 ? 10 * Math.toRadians(R) * Math.sqrt(3) / 3 : random.nextDouble() * 2000;
+
+                List<Integer> expected = new ArrayList<>();
+                for (int i = 0; i < POINTS; i++) {
+                    if (distanceSq(i, cx, cy, cz) <= radius * radius)
+                        expected.add(i);
+                }
+                Visited visited = new Visited();
+                index.radiusSearch(cx, cy, cz, radius, (point, distanceSq) -> {
+                    assertEquals(distanceSq(point, cx, cy, cz), distanceSq, 0);
+                    return visited.add(point);
+                });
+                assertArrayEquals(index.getClass().getSimpleName() + " query " + q, toArray(expected), visited.sorted());
+            }
+        }
+    }
+
+    @Test
+    public void boxSearchFindsThePointsOfTheBox() {
+        Random random = new Random(13);
+        for (NearestNeighbourIndex index : indexes()) {
+            for (int q = 0; q < QUERIES; q++) {
+                // Bounds on lattice coordinates every other time
+                int corner = random.nextInt(POINTS / 4) * 4;
+                int other = q % 2 == 0 ? random.nextInt(POINTS / 4) * 4 : random.nextInt(POINTS);
+                double minX = Math.min(x[corner], x[other]), maxX = Math.max(x[corner], x[other]);
+                double minY = Math.min(y[corner], y[other]), maxY = Math.max(y[corner], y[other]);
+                double minZ = Math.min(z[corner], z[other]), maxZ = Math.max(z[corner], z[other]);
+
+                List<Integer> expected = new ArrayList<>();
+                for (int i = 0; i < POINTS; i++) {
+                    if (x[i] >= minX && x[i] <= maxX && y[i] >= minY && y[i] <= maxY && z[i] >= minZ && z[i] <= maxZ)
+                        expected.add(i);
+                }
+                Visited visited = new Visited();
+                index.boxSearch(minX, maxX, minY, maxY, minZ, maxZ, (point, distanceSq) -> visited.add(point));
+                assertArrayEquals(index.getClass().getSimpleName() + " query " + q, toArray(expected), visited.sorted());
+            }
+        }
+    }
+
+    @Test
+    public void latitudeLongitudeBoxSearchFindsThePointsOfTheBox() {
+        Random random = new Random(17);
+        List<double[]> boxes = new ArrayList<>();
+        // Across the antimeridian, around a pole, the whole sphere and on lattice bounds
+        boxes.add(new double[] {-30, 40, 170, -165});
+        boxes.add(new double[] {-90, 90, 175, -175});
+        boxes.add(new double[] {60, 90, -180, 180});
+        boxes.add(new double[] {-90, 90, -180, 180});
+        boxes.add(new double[] {-20, 20, -45, 45});
+        boxes.add(new double[] {10, 10, -175, 175});
+        for (int q = 0; q < QUERIES; q++) {
+            double lat1 = random.nextDouble() * 180 - 90;
+            double lat2 = random.nextDouble() * 180 - 90;
+            boxes.add(new double[] {Math.min(lat1, lat2), Math.max(lat1, lat2), random.nextDouble() * 360 - 180, random.nextDouble() * 360 - 180});
+        }
+
+        for (NearestNeighbourIndex index : indexes()) {
+            for (double[] bounds : boxes) {
+                LatitudeLongitudeBox box = new LatitudeLongitudeBox(bounds[0], bounds[1], bounds[2], bounds[3]);
+                boolean crossesAntimeridian = bounds[2] > bounds[3];
+                List<Integer> expected = new ArrayList<>();
+                for (int i = 0; i < POINTS; i++) {
+                    boolean inLongitudes = crossesAntimeridian
+                            ? longitudes[i] >= bounds[2] || longitudes[i] <= bounds[3]
+                            : longitudes[i] >= bounds[2] && longitudes[i] <= bounds[3];
+                    if (latitudes[i] >= bounds[0] && latitudes[i] <= bounds[1] && inLongitudes)
+                        expected.add(i);
+                }
+                Visited visited = new Visited();
+                index.latitudeLongitudeBoxSearch(box, (point, distanceSq) -> visited.add(point));
+                assertArrayEquals(index.getClass().getSimpleName() + " box " + Arrays.toString(bounds), toArray(expected), visited.sorted());
+            }
+        }
+    }
+
+    @Test
+    public void searchesStopWhenTheVisitorReturnsFalse() {
+        for (NearestNeighbourIndex index : indexes()) {
+            int[] visits = new int[1];
+            assertFalse(index.radiusSearch(x[0], y[0], z[0], 2 * R, (point, distanceSq) -> ++visits[0] < 10));
+            assertEquals(10, visits[0]);
+            visits[0] = 0;
+            assertFalse(index.boxSearch(-R, R, -R, R, -R, R, (point, distanceSq) -> ++visits[0] < 10));
+            assertEquals(10, visits[0]);
+            visits[0] = 0;
+            assertFalse(index.latitudeLongitudeBoxSearch(new LatitudeLongitudeBox(-90, 90, 90, -90), (point, distanceSq) -> ++visits[0] < 10));
+            assertEquals(10, visits[0]);
+        }
+    }
+
+    private static double distanceSq(int point, double cx, double cy, double cz) {
+        double dx = x[point] - cx;
+        double dy = y[point] - cy;
+        double dz = z[point] - cz;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private static int[] toArray(List<Integer> points) {
+        return points.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Points received by a visitor, each must be received once.
+     */
+    private static final class Visited {
+        private final boolean[] seen = new boolean[POINTS];
+        private final List<Integer> points = new ArrayList<>();
+
+        private boolean add(int point) {
+            assertFalse("Point " + point + " visited twice", seen[point]);
+            seen[point] = true;
+            points.add(point);
+            return true;
+        }
+
+        private int[] sorted() {
+            int[] sorted = toArray(points);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}